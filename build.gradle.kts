@@ -1,7 +1,10 @@
+import org.jetbrains.intellij.platform.gradle.TestFrameworkType
+
 plugins {
     id("java")
     id("org.jetbrains.kotlin.jvm") version "1.9.22"
     id("org.jetbrains.intellij.platform") version "2.0.0"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.yuunus90"
@@ -15,14 +18,33 @@ repositories {
     }
 }
 
+// Düzenleme izi stres testleri src/stress/java altında, platform test çerçevesiyle gerçek editörde koşar
+sourceSets {
+    create("stress") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+configurations["stressImplementation"].extendsFrom(configurations.testImplementation.get())
+configurations["stressRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
 dependencies {
-    implementation("com.google.code.gson:gson:2.10.1")
+    implementation("com.google.code.gson:gson:2.11.0")
 
     intellijPlatform {
         intellijIdeaCommunity("2025.1")
         instrumentationTools()
+        testFramework(TestFrameworkType.Platform)
     }
+
+    testImplementation("junit:junit:4.13.2")
+    // Platform test çerçevesi hata raporlarken bu sınıflara ihtiyaç duyar
+    testImplementation("org.opentest4j:opentest4j:1.3.0")
     
+    // Benchmark'lar platform sınıflarına derlenip çalışabilsin diye ana classpath'i kullanır
+    jmhImplementation(files(sourceSets.main.get().compileClasspath))
+
     // Kotlin stdlib'i kaldırıyoruz çünkü IntelliJ Platform otomatik olarak sağlıyor
     constraints {
         implementation("org.jetbrains.kotlin:kotlin-stdlib") {
@@ -79,5 +101,37 @@ tasks {
     }
 }
 
+// Benchmarks live in src/jmh/java and run headless with ./gradlew jmh; pass -PjmhIncludes=<regex> to run
+// a subset. Results go to build/reports/jmh/results.json for comparison between revisions. A benchmark
+// that throws, such as a failed footprint check, fails the build.
+jmh {
+    jmhVersion.set("1.37")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results.json"))
+    fork.set(1)
+    failOnError.set(true)
+    warmupIterations.set(3)
+    iterations.set(5)
+    jvmArgs.add("-Djava.awt.headless=true")
+    (project.findProperty("jmhIncludes") as String?)?.let { includes.add(it) }
+}
+
 // All other configurations like patchPluginXml, runIde, etc. that were here are implicitly configured by the plugin now.
-// We only need to override them if we need specific settings. 
\ No newline at end of file
+// We only need to override them if we need specific settings. 
+// Replays the edit traces in src/stress/resources/traces through a real editor and fails when a comment
+// ends up on the wrong line. Not part of check, as wall-clock latency depends on the machine: run it with
+// ./gradlew stressTest. The report goes to build/reports/stress/edit-trace.json; keep one from a known good
+// revision and pass it as -PstressBaseline=<file> to also fail when a p95 grows past -PstressTolerance
+// (1.5 by default) times the baseline's, measured on the same machine.
+val stressTest by intellijPlatformTesting.testIde.registering {
+    task {
+        description = "Replays recorded edit traces and checks comment placement and latency against a baseline."
+        group = "verification"
+        val stress = sourceSets["stress"]
+        testClassesDirs = stress.output.classesDirs
+        classpath += stress.runtimeClasspath
+        systemProperty("linecomment.stress.report", layout.buildDirectory.file("reports/stress/edit-trace.json").get().asFile.path)
+        (project.findProperty("stressBaseline") as String?)?.let { systemProperty("linecomment.stress.baseline", file(it).path) }
+        (project.findProperty("stressTolerance") as String?)?.let { systemProperty("linecomment.stress.tolerance", it) }
+    }
+}
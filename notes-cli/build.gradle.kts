@@ -0,0 +1,55 @@
+plugins {
+    id("java")
+    id("application")
+}
+
+group = "com.yuunus90"
+version = rootProject.version
+
+repositories {
+    mavenCentral()
+}
+
+// Yorum modeli ve shard okuyucusu eklentiyle ortak; kopyalanmadan, derleme sırasında buradan alınır.
+// Bu dosyalar IntelliJ sınıflarına bağımlı olmamalı.
+val sharedModel by tasks.registering(Sync::class) {
+    from(rootProject.file("src/main/java")) {
+        include(
+            "com/yuunus90/linecomment/LineComment.java",
+            "com/yuunus90/linecomment/ArchivedComment.java",
+            "com/yuunus90/linecomment/NotesShard.java",
+            "com/yuunus90/linecomment/BinaryShardCodec.java",
+        )
+    }
+    into(layout.buildDirectory.dir("generated/shared-model"))
+}
+
+sourceSets {
+    main {
+        java.srcDir(sharedModel)
+    }
+}
+
+dependencies {
+    implementation("com.google.code.gson:gson:2.11.0")
+    compileOnly("org.jetbrains:annotations:24.1.0")
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_21
+    targetCompatibility = JavaVersion.VERSION_21
+}
+
+application {
+    mainClass.set("com.yuunus90.linecomment.NotesTool")
+    applicationName = "notes-cli"
+}
+
+tasks.jar {
+    manifest {
+        attributes("Main-Class" to "com.yuunus90.linecomment.NotesTool")
+    }
+    // Tek jar ile çalışsın diye Gson da içine alınır
+    from(configurations.runtimeClasspath.get().map { if (it.isDirectory) it else zipTree(it) })
+    duplicatesStrategy = DuplicatesStrategy.EXCLUDE
+}
@@ -0,0 +1,353 @@
+package com.yuunus90.linecomment;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Reads the notes of a project the way the plugin stores them, without the IDE. Comments are read one
+ * file at a time and archived comments are streamed, so besides the comments of one file only the
+ * journal is held in memory, which the plugin keeps below its compaction threshold.
+ * <p>
+ * Comments come from {@code .notes/shards}, or from the legacy {@code .notes/notes.json} in projects
+ * that have not been opened since shards were introduced. Changes still in {@code .notes/notes.journal}
+ * are applied on top, file by file, the same way the plugin replays them.
+ */
+final class NotesReader {
+
+    @FunctionalInterface
+    interface CommentVisitor {
+        void visit(String filePath, int line, LineComment comment) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface FileVisitor {
+        void visit(String filePath, Map<Integer, LineComment> comments) throws IOException;
+    }
+
+    private static final String JSON_EXTENSION = ".json";
+    private static final String BINARY_EXTENSION = ".bin";
+
+    private final Path projectDirectory;
+    private final Path notesDirectory;
+    private final Gson gson = new Gson();
+
+    NotesReader(Path projectDirectory) {
+        this.projectDirectory = projectDirectory;
+        this.notesDirectory = projectDirectory.resolve(".notes");
+    }
+
+    Path getProjectDirectory() {
+        return projectDirectory;
+    }
+
+    /**
+     * Visits every comment, file by file, with the journal applied. Comments of one file are visited
+     * together in line order.
+     */
+    void forEachComment(CommentVisitor visitor) throws IOException {
+        Journal journal = readJournal();
+        Set<String> visited = new HashSet<>();
+        Path shardsDirectory = notesDirectory.resolve("shards");
+        if (Files.isDirectory(shardsDirectory)) {
+            try (Stream<Path> files = Files.walk(shardsDirectory, 2)) {
+                for (Iterator<Path> it = files.filter(NotesReader::isCurrentShard).iterator(); it.hasNext(); ) {
+                    Path shard = it.next();
+                    NotesShard decoded = shard.getFileName().toString().endsWith(BINARY_EXTENSION)
+                            ? BinaryShardCodec.read(shard) : readJsonShard(shard);
+                    if (decoded != null && decoded.path != null) {
+                        visited.add(decoded.path);
+                        visitFile(decoded.path, decoded.generation, decoded.comments, journal, visitor);
+                    }
+                }
+            }
+        } else {
+            Path legacyNotes = notesDirectory.resolve("notes.json");
+            if (Files.exists(legacyNotes)) {
+                readLegacyNotes(legacyNotes, (path, comments) -> {
+                    visited.add(path);
+                    visitFile(path, -1, comments, journal, visitor);
+                });
+            }
+        }
+        // Files whose comments so far only exist in the journal
+        for (String path : journal.backlog().keySet()) {
+            if (!visited.contains(path)) {
+                visitFile(path, -1, null, journal, visitor);
+            }
+        }
+    }
+
+    /**
+     * Streams the archive, in its line-delimited form and in the legacy JSON array form if that is still
+     * there. A malformed entry ends the stream, as in the plugin.
+     */
+    void forEachArchived(Consumer<ArchivedComment> consumer) throws IOException {
+        Path archive = projectDirectory.resolve(".idea").resolve("archive.ndjson");
+        if (Files.exists(archive)) {
+            try (JsonReader reader = open(archive)) {
+                // Lenient mode accepts several top-level values, one per line.
+                reader.setStrictness(Strictness.LENIENT);
+                while (reader.peek() != JsonToken.END_DOCUMENT) {
+                    consumeArchived(reader, consumer);
+                }
+            } catch (JsonParseException e) {
+                throw new IOException("Malformed archive entry in " + archive, e);
+            }
+        }
+        Path legacyArchive = projectDirectory.resolve(".idea").resolve("archive.json");
+        if (Files.exists(legacyArchive)) {
+            try (JsonReader reader = open(legacyArchive)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    consumeArchived(reader, consumer);
+                }
+            } catch (JsonParseException | IllegalStateException e) {
+                throw new IOException("Malformed legacy archive " + legacyArchive, e);
+            }
+        }
+    }
+
+    /**
+     * Reads every complete journal record, grouped by the files it touches. A torn last line, as left by
+     * a crash in the middle of an append, ends the journal; one without its base record is ignored, as
+     * the plugin discards it.
+     */
+    private Journal readJournal() throws IOException {
+        Path journal = notesDirectory.resolve("notes.journal");
+        Map<String, List<JournalRecord>> backlog = new HashMap<>();
+        if (!Files.exists(journal)) {
+            return new Journal(0, backlog);
+        }
+        long base = -1;
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JournalRecord record;
+                try {
+                    record = gson.fromJson(line, JournalRecord.class);
+                } catch (JsonParseException e) {
+                    break;
+                }
+                if (record == null || record.op == null) {
+                    break;
+                }
+                if (base < 0) {
+                    if (!JournalRecord.BASE.equals(record.op)) {
+                        return new Journal(0, Map.of());
+                    }
+                    base = record.base;
+                    continue;
+                }
+                backlog.computeIfAbsent(record.path, k -> new ArrayList<>()).add(record);
+                if (record.target != null) {
+                    backlog.computeIfAbsent(record.target, k -> new ArrayList<>()).add(record);
+                }
+            }
+        }
+        return new Journal(Math.max(base, 0), backlog);
+    }
+
+    /**
+     * Applies the file's journal records unless its shard was written after them, then visits its
+     * comments in line order.
+     */
+    private static void visitFile(String path, long generation, Map<Integer, LineComment> stored, Journal journal,
+                                  CommentVisitor visitor) throws IOException {
+        TreeMap<Integer, LineComment> comments = new TreeMap<>();
+        if (stored != null) {
+            comments.putAll(stored);
+        }
+        // As in the plugin, an empty shard does not hold back the journal.
+        long shardGeneration = comments.isEmpty() ? -1 : generation;
+        List<JournalRecord> records = journal.backlog().get(path);
+        if (records != null && shardGeneration <= journal.base()) {
+            for (JournalRecord record : records) {
+                apply(record, path, comments);
+            }
+        }
+        for (Map.Entry<Integer, LineComment> entry : comments.entrySet()) {
+            visitor.visit(path, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void apply(JournalRecord record, String path, TreeMap<Integer, LineComment> comments) {
+        switch (record.op) {
+            case JournalRecord.ADD -> comments.put(record.line, record.toComment(path));
+            case JournalRecord.UPDATE -> {
+                LineComment comment = comments.get(record.line);
+                if (comment != null) {
+                    comment.setComment(record.comment);
+                }
+            }
+            case JournalRecord.REMOVE -> comments.remove(record.line);
+            case JournalRecord.SHIFT -> shift(comments, record.line, record.delta);
+            case JournalRecord.REPLACE -> replace(comments, path, record.entries);
+            case JournalRecord.RENAME -> {
+                // Applied once for each side, as each file's shard may be at a different generation.
+                if (path.equals(record.path)) {
+                    comments.clear();
+                } else {
+                    replace(comments, path, record.entries);
+                }
+            }
+            default -> {
+                // Written by a newer plugin; skipped, as the plugin skips it.
+            }
+        }
+    }
+
+    // Comments below startLine move by delta; for a deletion the ones on the deleted lines are dropped.
+    private static void shift(TreeMap<Integer, LineComment> comments, int startLine, int delta) {
+        if (delta == 0) {
+            return;
+        }
+        Map<Integer, LineComment> below = comments.tailMap(startLine, false);
+        List<Map.Entry<Integer, LineComment>> moved = new ArrayList<>(below.entrySet());
+        below.clear();
+        for (Map.Entry<Integer, LineComment> entry : moved) {
+            if (delta > 0 || entry.getKey() > startLine - delta) {
+                comments.put(entry.getKey() + delta, entry.getValue());
+            }
+        }
+    }
+
+    private static void replace(TreeMap<Integer, LineComment> comments, String path, List<JournalRecord> entries) {
+        comments.clear();
+        if (entries != null) {
+            for (JournalRecord entry : entries) {
+                comments.put(entry.line, entry.toComment(path));
+            }
+        }
+    }
+
+    private void consumeArchived(JsonReader reader, Consumer<ArchivedComment> consumer) {
+        ArchivedComment comment = gson.fromJson(reader, ArchivedComment.class);
+        if (comment != null) {
+            consumer.accept(comment);
+        }
+    }
+
+    private NotesShard readJsonShard(Path shard) throws IOException {
+        try (JsonReader reader = open(shard)) {
+            return gson.fromJson(reader, NotesShard.class);
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed shard " + shard, e);
+        }
+    }
+
+    private void readLegacyNotes(Path notes, FileVisitor visitor) throws IOException {
+        try (JsonReader reader = open(notes)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String path = reader.nextName();
+                if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    visitor.visit(path, readComments(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed notes file " + notes, e);
+        }
+    }
+
+    // Reads the {"line": comment, ...} object of one file.
+    private Map<Integer, LineComment> readComments(JsonReader reader) throws IOException {
+        Map<Integer, LineComment> comments = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int line = Integer.parseInt(reader.nextName());
+            LineComment comment = gson.fromJson(reader, LineComment.class);
+            if (comment != null) {
+                comments.put(line, comment);
+            }
+        }
+        reader.endObject();
+        return comments;
+    }
+
+    private static JsonReader open(Path file) throws IOException {
+        Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        return new JsonReader(reader);
+    }
+
+    // Of a JSON and a binary shard of the same file, the one written last is current.
+    private static boolean isCurrentShard(Path file) {
+        String name = file.getFileName().toString();
+        String extension;
+        String otherExtension;
+        if (name.endsWith(JSON_EXTENSION)) {
+            extension = JSON_EXTENSION;
+            otherExtension = BINARY_EXTENSION;
+        } else if (name.endsWith(BINARY_EXTENSION)) {
+            extension = BINARY_EXTENSION;
+            otherExtension = JSON_EXTENSION;
+        } else {
+            return false;
+        }
+        Path other = file.resolveSibling(name.substring(0, name.length() - extension.length()) + otherExtension);
+        if (!Files.exists(other)) {
+            return true;
+        }
+        try {
+            int order = Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(other));
+            return order > 0 || (order == 0 && name.endsWith(BINARY_EXTENSION));
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private record Journal(long base, Map<String, List<JournalRecord>> backlog) {
+    }
+
+    /**
+     * One line of {@code .notes/notes.journal}, with the fields of the plugin's journal records.
+     */
+    private static final class JournalRecord {
+        static final String BASE = "base";
+        static final String ADD = "add";
+        static final String UPDATE = "update";
+        static final String REMOVE = "remove";
+        static final String SHIFT = "shift";
+        static final String REPLACE = "replace";
+        static final String RENAME = "rename";
+
+        String op;
+        String path;
+        String target;
+        int line;
+        String comment;
+        long timestamp;
+        int delta;
+        long base;
+        String anchor;
+        long context;
+        List<JournalRecord> entries;
+
+        LineComment toComment(String filePath) {
+            LineComment lineComment = new LineComment(filePath, line, comment, timestamp);
+            lineComment.setAnchor(anchor, context);
+            return lineComment;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.yuunus90.linecomment;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Command line access to a project's line comments for CI and scripts, without starting the IDE:
+ * <pre>
+ * java -jar notes-cli.jar [--project DIR] list [--archive]
+ * java -jar notes-cli.jar [--project DIR] grep REGEX [--archive]
+ * java -jar notes-cli.jar [--project DIR] count
+ * java -jar notes-cli.jar [--project DIR] validate
+ * java -jar notes-cli.jar [--project DIR] export FILE
+ * </pre>
+ * Lines are printed 1-based, as in the editor, and include changes the plugin has only journaled so far.
+ * Besides the journal and the comments of one file, only {@code count} keeps one counter per directory.
+ * Exits with 1 when validation finds problems and with 2 on bad usage or unreadable notes.
+ */
+public final class NotesTool {
+
+    private static final String USAGE = """
+            Usage: notes-cli [--project DIR] COMMAND
+              list [--archive]        print every comment, or every archived comment
+              grep REGEX [--archive]  print the comments whose text matches REGEX
+              count                   print the number of comments per directory
+              validate                check that every comment's file exists and has its line
+              export FILE             write every comment to FILE in the IDE's export format""";
+
+    private final NotesReader reader;
+    private final PrintStream out;
+
+    NotesTool(NotesReader reader, PrintStream out) {
+        this.reader = reader;
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        List<String> arguments = new ArrayList<>(List.of(args));
+        Path projectDirectory = Paths.get("");
+        if (arguments.size() >= 2 && arguments.get(0).equals("--project")) {
+            projectDirectory = Paths.get(arguments.get(1));
+            arguments.subList(0, 2).clear();
+        }
+        if (arguments.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        NotesTool tool = new NotesTool(new NotesReader(projectDirectory.toAbsolutePath()), System.out);
+        try {
+            System.exit(tool.run(arguments.get(0), arguments.subList(1, arguments.size())));
+        } catch (IOException e) {
+            System.err.println("notes-cli: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    int run(String command, List<String> args) throws IOException {
+        boolean archive = args.contains("--archive");
+        return switch (command) {
+            case "list" -> archive ? listArchived(null) : list(null);
+            case "grep" -> {
+                Pattern pattern = args.isEmpty() || args.get(0).startsWith("--") ? null : compile(args.get(0));
+                if (pattern == null) {
+                    yield usage();
+                }
+                yield archive ? listArchived(pattern) : list(pattern);
+            }
+            case "count" -> count();
+            case "validate" -> validate();
+            case "export" -> args.size() == 1 ? export(Paths.get(args.get(0))) : usage();
+            default -> usage();
+        };
+    }
+
+    private int usage() {
+        System.err.println(USAGE);
+        return 2;
+    }
+
+    private static Pattern compile(String regex) {
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            System.err.println("notes-cli: " + e.getDescription());
+            return null;
+        }
+    }
+
+    private int list(Pattern pattern) throws IOException {
+        reader.forEachComment((filePath, line, comment) -> {
+            if (pattern == null || matches(pattern, comment.getComment())) {
+                out.println(filePath + ":" + (line + 1) + "\t" + oneLine(comment.getComment()));
+            }
+        });
+        return 0;
+    }
+
+    private int listArchived(Pattern pattern) throws IOException {
+        reader.forEachArchived(comment -> {
+            if (pattern == null || matches(pattern, comment.getComment())) {
+                out.println(comment.getFilePath() + ":" + (comment.getOriginalLineNumber() + 1) + "\t"
+                        + oneLine(comment.getComment()) + "\t" + oneLine(comment.getDeletedCodeLine()));
+            }
+        });
+        return 0;
+    }
+
+    private int count() throws IOException {
+        Map<String, long[]> perDirectory = new TreeMap<>();
+        long[] total = new long[1];
+        reader.forEachComment((filePath, line, comment) -> {
+            int slash = filePath.lastIndexOf('/');
+            perDirectory.computeIfAbsent(slash >= 0 ? filePath.substring(0, slash) : ".", k -> new long[1])[0]++;
+            total[0]++;
+        });
+        perDirectory.forEach((directory, count) -> out.println(count[0] + "\t" + directory));
+        out.println(total[0] + "\ttotal");
+        return 0;
+    }
+
+    /**
+     * Reports comments on missing files, on lines past the end of their file and without text. Files are
+     * visited one at a time, so only the line count of the current file is kept.
+     */
+    private int validate() throws IOException {
+        long[] problems = new long[1];
+        String[] currentPath = new String[1];
+        int[] currentLineCount = new int[1];
+        reader.forEachComment((filePath, line, comment) -> {
+            if (!filePath.equals(currentPath[0])) {
+                currentPath[0] = filePath;
+                currentLineCount[0] = lineCount(reader.getProjectDirectory().resolve(filePath));
+            }
+            String problem = null;
+            if (currentLineCount[0] < 0) {
+                problem = "file not found";
+            } else if (line < 0 || line >= currentLineCount[0]) {
+                problem = "line out of range, file has " + currentLineCount[0] + " lines";
+            } else if (comment.getComment() == null || comment.getComment().isBlank()) {
+                problem = "empty comment";
+            }
+            if (problem != null) {
+                problems[0]++;
+                out.println(filePath + ":" + (line + 1) + "\t" + problem);
+            }
+        });
+        out.println(problems[0] == 0 ? "OK" : problems[0] + " problems");
+        return problems[0] == 0 ? 0 : 1;
+    }
+
+    /**
+     * Writes the same {"path": {"line": comment}} layout as the IDE's export, which the IDE's import
+     * reads back. Files appear in storage order rather than sorted, to keep the export streaming.
+     */
+    private int export(Path target) throws IOException {
+        Gson gson = new Gson();
+        try (Writer writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8);
+             JsonWriter json = new JsonWriter(writer)) {
+            json.setIndent("  ");
+            json.beginObject();
+            String[] currentPath = new String[1];
+            reader.forEachComment((filePath, line, comment) -> {
+                if (!filePath.equals(currentPath[0])) {
+                    if (currentPath[0] != null) {
+                        json.endObject();
+                    }
+                    currentPath[0] = filePath;
+                    json.name(filePath).beginObject();
+                }
+                json.name(Integer.toString(line));
+                gson.toJson(comment, LineComment.class, json);
+            });
+            if (currentPath[0] != null) {
+                json.endObject();
+            }
+            json.endObject();
+        }
+        return 0;
+    }
+
+    private static boolean matches(Pattern pattern, String text) {
+        return text != null && pattern.matcher(text).find();
+    }
+
+    private static String oneLine(String text) {
+        return text == null ? "" : text.replace("\r", "").replace('\n', ' ');
+    }
+
+    /**
+     * Counts lines the way the editor does, one more than there are line breaks, or returns -1 if the
+     * file does not exist.
+     */
+    private static int lineCount(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return -1;
+        }
+        int lines = 1;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+}
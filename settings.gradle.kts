@@ -0,0 +1,4 @@
+rootProject.name = "take-note"
+
+// IDE'siz çalışan notlar aracı: CI ve script'lerden yorumları listeler, arar ve doğrular
+include("notes-cli")
@@ -0,0 +1,40 @@
+package com.yuunus90.linecomment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Comments spread over files of 100 comments each, the shape of a large real project.
+     */
+    static Map<String, Map<Integer, LineComment>> comments(int total) {
+        Map<String, Map<Integer, LineComment>> byFile = new HashMap<>();
+        for (int i = 0; i < total; i++) {
+            String filePath = "src/main/java/pkg" + (i / 10_000) + "/File" + (i / 100) + ".java";
+            int line = (i % 100) * 3;
+            byFile.computeIfAbsent(filePath, k -> new HashMap<>())
+                    .put(line, new LineComment(filePath, line, "Benchmark comment number " + i, 1_700_000_000_000L + i));
+        }
+        return byFile;
+    }
+}
@@ -0,0 +1,86 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gutter icon reconciliation against a stub document and markup model in which every line is 80
+ * characters long. Measures an unchanged file and one where a single comment was added.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GutterReconcileBenchmark {
+
+    private static final int LINE_LENGTH = 80;
+
+    @Param({"10", "1000", "10000"})
+    public int commentsPerFile;
+
+    private Document document;
+    private MarkupModel markupModel;
+    private Map<Integer, LineComment> comments;
+    private Map<Integer, LineComment> commentsWithOneAdded;
+    private LineComment added;
+    private Map<LineComment, RangeHighlighter> registry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int lineCount = commentsPerFile * 2 + 1;
+        document = Stubs.stub(Document.class, Map.of(
+                "getLineCount", args -> lineCount,
+                "getLineNumber", args -> (Integer) args[0] / LINE_LENGTH,
+                "getTextLength", args -> lineCount * LINE_LENGTH));
+        markupModel = Stubs.stub(MarkupModel.class, Map.of());
+        comments = new HashMap<>();
+        for (int i = 0; i < commentsPerFile; i++) {
+            comments.put(i * 2, new LineComment("Benchmark.java", i * 2, "comment " + i));
+        }
+        commentsWithOneAdded = new HashMap<>(comments);
+        added = new LineComment("Benchmark.java", 1, "added");
+        commentsWithOneAdded.put(1, added);
+    }
+
+    @Setup(Level.Iteration)
+    public void paint() {
+        registry = new IdentityHashMap<>();
+        LineCommentGutterIconRenderer.reconcile(comments, registry, document, markupModel, GutterReconcileBenchmark::highlighter);
+    }
+
+    @Benchmark
+    public Map<LineComment, RangeHighlighter> reconcileUnchanged() {
+        LineCommentGutterIconRenderer.reconcile(comments, registry, document, markupModel, GutterReconcileBenchmark::highlighter);
+        return registry;
+    }
+
+    @Benchmark
+    public Map<LineComment, RangeHighlighter> reconcileOneAdded() {
+        LineCommentGutterIconRenderer.reconcile(commentsWithOneAdded, registry, document, markupModel, GutterReconcileBenchmark::highlighter);
+        // Back to the painted state for the next call, without a per-invocation setup.
+        registry.remove(added);
+        return registry;
+    }
+
+    private static RangeHighlighter highlighter(LineComment comment, int line) {
+        int offset = line * LINE_LENGTH;
+        return Stubs.stub(RangeHighlighter.class, Map.of(
+                "isValid", args -> true,
+                "getStartOffset", args -> offset,
+                "getEndOffset", args -> offset + LINE_LENGTH));
+    }
+}
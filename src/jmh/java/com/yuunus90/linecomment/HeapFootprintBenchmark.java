@@ -0,0 +1,128 @@
+package com.yuunus90.linecomment;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by all comments once loaded, in the service's model and in the nested maps of unshared
+ * comment objects it replaced. Both read the same JSON shards in the same invocation, and the invocation
+ * fails when the service does not retain fewer bytes per note than the nested maps, which fails the run.
+ * Bytes per note of both models and the load time of each are reported as secondary results:
+ * <pre>
+ * ./gradlew jmh -PjmhIncludes=HeapFootprint
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class HeapFootprintBenchmark {
+
+    // A quarter of all notes repeat one of these, the rest are unique
+    private static final String[] COMMON_TEXTS = {"TODO", "Refactor this", "Check null handling", "Why?",
+            "Remove after release", "Needs a test", "Slow path", "Ask on review"};
+
+    @Param({"100000", "1000000"})
+    public int notes;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long serviceBytesPerNote;
+        public long nestedMapsBytesPerNote;
+        public long serviceLoadMillis;
+        public long nestedMapsLoadMillis;
+    }
+
+    private Path projectDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        projectDirectory = Files.createTempDirectory("line-comment-heap-bench");
+        NotesShardStore store = new NotesShardStore(projectDirectory.resolve(".notes"), false);
+        int i = 0;
+        for (Map.Entry<String, Map<Integer, LineComment>> entry : BenchmarkFiles.comments(notes).entrySet()) {
+            for (LineComment comment : entry.getValue().values()) {
+                if (i++ % 4 == 0) {
+                    comment.setComment(COMMON_TEXTS[i % COMMON_TEXTS.length]);
+                }
+            }
+            store.write(entry.getKey(), store.serialize(new NotesShard(0, entry.getKey(), entry.getValue())));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(projectDirectory);
+    }
+
+    @Benchmark
+    public void load(Footprint footprint) {
+        long before = usedHeap();
+        long start = System.nanoTime();
+        LineCommentService service = loadService();
+        footprint.serviceLoadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        footprint.serviceBytesPerNote = (usedHeap() - before) / notes;
+        Reference.reachabilityFence(service);
+        service.dispose();
+
+        before = usedHeap();
+        start = System.nanoTime();
+        Map<String, Map<Integer, LineComment>> nestedMaps = loadNestedMaps();
+        footprint.nestedMapsLoadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        footprint.nestedMapsBytesPerNote = (usedHeap() - before) / notes;
+        Reference.reachabilityFence(nestedMaps);
+
+        if (footprint.serviceBytesPerNote >= footprint.nestedMapsBytesPerNote) {
+            throw new IllegalStateException("The service retains " + footprint.serviceBytesPerNote
+                    + " bytes per note, the nested maps " + footprint.nestedMapsBytesPerNote + ", at " + notes + " notes");
+        }
+    }
+
+    private LineCommentService loadService() {
+        LineCommentService service = new LineCommentService(Stubs.project(projectDirectory));
+        service.whenLoaded().join();
+        service.getCommentedFiles(); // Loads every shard
+        return service;
+    }
+
+    // Per-file concurrent maps of boxed lines to comments that each hold their own path and text copies
+    private Map<String, Map<Integer, LineComment>> loadNestedMaps() {
+        Map<String, Map<Integer, LineComment>> comments = new ConcurrentHashMap<>();
+        new NotesShardStore(projectDirectory.resolve(".notes"), false).forEach(shard ->
+                comments.computeIfAbsent(shard.path, k -> new ConcurrentHashMap<>()).putAll(shard.comments));
+        return comments;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
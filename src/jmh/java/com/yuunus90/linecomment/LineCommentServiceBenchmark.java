@@ -0,0 +1,82 @@
+package com.yuunus90.linecomment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-file operations of {@link LineCommentService} with comments on every other line. Mutations go
+ * through the real journal and write-behind, writing to a temporary project directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LineCommentServiceBenchmark {
+
+    private static final String FILE = "src/main/java/Benchmark.java";
+
+    @Param({"10", "1000", "10000"})
+    public int commentsPerFile;
+
+    private Path projectDirectory;
+    private LineCommentService service;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        projectDirectory = Files.createTempDirectory("line-comment-bench");
+        service = new LineCommentService(Stubs.project(projectDirectory));
+        service.whenLoaded().join();
+        for (int i = 0; i < commentsPerFile; i++) {
+            service.addComment(FILE, i * 2, "comment " + i);
+        }
+        service.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        service.dispose();
+        BenchmarkFiles.deleteRecursively(projectDirectory);
+    }
+
+    private int nextLine() {
+        cursor = (cursor + 7919) % commentsPerFile;
+        return cursor * 2;
+    }
+
+    @Benchmark
+    public void addComment() {
+        // Lands on an existing comment line, so the file keeps its size across invocations.
+        service.addComment(FILE, nextLine(), "replaced");
+    }
+
+    @Benchmark
+    public LineComment getComment() {
+        return service.getComment(FILE, nextLine());
+    }
+
+    @Benchmark
+    public boolean hasComment() {
+        return service.hasComment(FILE, nextLine() + 1);
+    }
+
+    @Benchmark
+    public void updateLineNumbers() {
+        // Insert a line after the middle comment and delete it again: every later comment moves twice.
+        int line = commentsPerFile / 2 * 2;
+        service.updateLineNumbers(FILE, line, 1);
+        service.updateLineNumbers(FILE, line, -1);
+    }
+}
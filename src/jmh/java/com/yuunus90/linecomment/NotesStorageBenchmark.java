@@ -0,0 +1,94 @@
+package com.yuunus90.linecomment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Full load and save of the notes shards in both formats, and of the comment archive. The on-disk size
+ * of each is printed once per trial for the JSON and binary comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NotesStorageBenchmark {
+
+    @Param({"10000", "100000"})
+    public int entries;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private Path directory;
+    private Map<String, Map<Integer, LineComment>> comments;
+    private List<ArchivedComment> archived;
+    private NotesShardStore store;
+    private CommentArchiveService archive;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("line-comment-storage-bench");
+        comments = BenchmarkFiles.comments(entries);
+        archived = comments.values().stream()
+                .flatMap(fileComments -> fileComments.values().stream())
+                .map(comment -> new ArchivedComment(comment.getFilePath(), comment.getLineNumber(), comment.getComment(),
+                        "    int value = " + comment.getLineNumber() + ";"))
+                .toList();
+        store = new NotesShardStore(directory.resolve(".notes"), "binary".equals(format));
+        saveShards();
+        archive = new CommentArchiveService(Stubs.project(directory));
+        archive.archiveAll(archived);
+        System.out.printf("%n%d entries, %s shards: %d bytes, archive: %d bytes%n", entries, format,
+                sizeOf(directory.resolve(".notes")), sizeOf(directory.resolve(".idea")));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void loadShards(Blackhole blackhole) {
+        store.forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public void saveShards() throws IOException {
+        for (Map.Entry<String, Map<Integer, LineComment>> entry : comments.entrySet()) {
+            store.write(entry.getKey(), store.serialize(new NotesShard(1, entry.getKey(), entry.getValue())));
+        }
+    }
+
+    @Benchmark
+    public void loadArchive(Blackhole blackhole) {
+        archive.forEachArchivedComment(blackhole::consume);
+    }
+
+    @Benchmark
+    public void saveArchive() throws IOException {
+        Files.deleteIfExists(directory.resolve(".idea").resolve("archive.ndjson"));
+        archive.archiveAll(archived);
+    }
+
+    private static long sizeOf(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.util.messages.Topic;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Dynamic-proxy stand-ins for the platform interfaces the benchmarked code touches, so benchmarks run
+ * without starting an IDE. Methods without an answer return the type's default, or another stub for
+ * interface return types, which makes message bus publishing a no-op.
+ */
+final class Stubs {
+
+    private Stubs() {
+    }
+
+    static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        Object proxy = Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, (self, method, args) -> {
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer != null) {
+                return answer.apply(args);
+            }
+            switch (method.getName()) {
+                case "equals":
+                    return self == args[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "toString":
+                    return type.getSimpleName() + " stub";
+                case "syncPublisher":
+                    return stub(((Topic<?>) args[0]).getListenerClass(), Map.of());
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == int.class || returnType == long.class || returnType == short.class || returnType == byte.class) {
+                return 0;
+            } else if (returnType.isInterface()) {
+                return stub(returnType, Map.of());
+            }
+            return null;
+        });
+        return type.cast(proxy);
+    }
+
+    /**
+     * A project rooted at the given directory whose services are created on first use, with the project
+     * as their constructor argument or with no arguments.
+     */
+    static Project project(Path basePath) {
+        Map<Class<?>, Object> services = new HashMap<>();
+        Project[] project = new Project[1];
+        project[0] = stub(Project.class, Map.of(
+                "getBasePath", args -> basePath.toString(),
+                "getName", args -> "benchmark",
+                "getService", args -> {
+                    synchronized (services) {
+                        Class<?> serviceClass = (Class<?>) args[0];
+                        Object service = services.get(serviceClass);
+                        if (service == null) {
+                            try {
+                                service = serviceClass.getConstructor(Project.class).newInstance(project[0]);
+                            } catch (NoSuchMethodException e) {
+                                service = newInstance(serviceClass);
+                            } catch (ReflectiveOperationException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            services.put(serviceClass, service);
+                        }
+                        return service;
+                    }
+                }));
+        return project[0];
+    }
+
+    private static Object newInstance(Class<?> type) {
+        try {
+            return type.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
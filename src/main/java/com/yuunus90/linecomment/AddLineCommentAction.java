@@ -21,6 +21,9 @@ public class AddLineCommentAction extends AnAction {
         }
 
         String relativePath = CommentPathUtil.getRelativePath(project, file);
+        CommentAnchorService anchorService = CommentAnchorService.getInstance(project);
+        // Bring the stored lines up to date with the editor before looking at the caret line.
+        anchorService.sync(editor.getDocument());
         int lineNumber = editor.getCaretModel().getLogicalPosition().line;
 
         LineCommentService service = LineCommentService.getInstance(project);
@@ -46,7 +49,6 @@ public class AddLineCommentAction extends AnAction {
                 service.addComment(relativePath, lineNumber, comment);
             }
         }
-        // Always redraw all icons for the current editor to reflect changes.
-        LineCommentGutterIconRenderer.redrawAllIconsForEditor(project, editor, relativePath);
+        anchorService.sync(editor.getDocument());
     }
 } 
\ No newline at end of file
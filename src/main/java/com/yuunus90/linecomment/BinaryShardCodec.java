@@ -0,0 +1,150 @@
+package com.yuunus90.linecomment;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact binary encoding of a {@link NotesShard}. The file path is stored once per shard
+ * instead of inside every comment, line numbers and timestamps are delta-encoded varints and comment
+ * text is length-prefixed UTF-8:
+ * <pre>
+ * magic "LCN" version:u8 generation:varint path:string count:varint
+ * (lineDelta:varint timestampDelta:zigzag-varint comment:string anchor:string contextHash:varint)*
+ * string = length:varint utf8-bytes
+ * </pre>
+ * Version 1 files, written before comments had anchors, lack the last two fields and are still read.
+ */
+final class BinaryShardCodec {
+
+    private static final byte[] MAGIC = {'L', 'C', 'N'};
+    private static final byte VERSION = 2;
+
+    private BinaryShardCodec() {
+    }
+
+    static byte[] encode(@NotNull NotesShard shard) {
+        Map<Integer, LineComment> sorted = new TreeMap<>(shard.comments);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + sorted.size() * 48);
+        out.writeBytes(MAGIC);
+        out.write(VERSION);
+        writeVarLong(out, shard.generation);
+        writeString(out, shard.path);
+        writeVarLong(out, sorted.size());
+        int previousLine = 0;
+        long previousTimestamp = 0;
+        for (Map.Entry<Integer, LineComment> entry : sorted.entrySet()) {
+            LineComment comment = entry.getValue();
+            writeVarLong(out, entry.getKey() - previousLine);
+            writeVarLong(out, zigZag(comment.getCreationTimestamp() - previousTimestamp));
+            writeString(out, comment.getComment() != null ? comment.getComment() : "");
+            writeString(out, comment.getAnchorText() != null ? comment.getAnchorText() : "");
+            writeVarLong(out, comment.getContextHash());
+            previousLine = entry.getKey();
+            previousTimestamp = comment.getCreationTimestamp();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the whole file and decodes it. Shards hold the comments of one file, so they are read rather
+     * than mapped: on Windows a mapping locks the file until it is collected, failing the next write.
+     */
+    static NotesShard read(@NotNull Path file) throws IOException {
+        return decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+    }
+
+    static NotesShard decode(@NotNull ByteBuffer buffer) throws IOException {
+        try {
+            for (byte b : MAGIC) {
+                if (buffer.get() != b) {
+                    throw new IOException("Not a binary line comment shard");
+                }
+            }
+            byte version = buffer.get();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported binary line comment shard version " + version);
+            }
+            long generation = readVarLong(buffer);
+            String path = readString(buffer);
+            int count = Math.toIntExact(readVarLong(buffer));
+            // Every comment takes at least one byte, which bounds the map allocated for them
+            if (count < 0 || count > buffer.remaining()) {
+                throw new IOException("Malformed binary line comment shard: " + count + " comments in "
+                        + buffer.remaining() + " bytes");
+            }
+            Map<Integer, LineComment> comments = new HashMap<>(count * 4 / 3 + 1);
+            int line = 0;
+            long timestamp = 0;
+            for (int i = 0; i < count; i++) {
+                line += Math.toIntExact(readVarLong(buffer));
+                timestamp += unZigZag(readVarLong(buffer));
+                LineComment comment = new LineComment(path, line, readString(buffer), timestamp);
+                if (version >= 2) {
+                    String anchor = readString(buffer);
+                    comment.setAnchor(anchor.isEmpty() ? null : anchor, readVarLong(buffer));
+                }
+                comment.setDirty(false);
+                comments.put(line, comment);
+            }
+            return new NotesShard(generation, path, comments);
+        } catch (BufferUnderflowException | ArithmeticException e) {
+            throw new IOException("Truncated binary line comment shard", e);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        long length = readVarLong(buffer);
+        // Checked before allocating, so a corrupt length fails as a malformed shard instead of exhausting the heap
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Malformed binary line comment shard: string of " + length + " bytes with "
+                    + buffer.remaining() + " left");
+        }
+        byte[] bytes = new byte[(int) length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ArithmeticException("Malformed varint");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,98 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one {@link DocumentCommentAnchors} per document that is open in an editor of this project,
+ * reference-counted by the editors attached to it. Editors are acquired and released on the EDT.
+ */
+@Service(Service.Level.PROJECT)
+public final class CommentAnchorService implements Disposable {
+
+    private final Project project;
+    private final Map<Document, DocumentCommentAnchors> anchors = new ConcurrentHashMap<>();
+
+    public CommentAnchorService(Project project) {
+        this.project = project;
+    }
+
+    public static CommentAnchorService getInstance(@NotNull Project project) {
+        return project.getService(CommentAnchorService.class);
+    }
+
+    /**
+     * Attaches the editor to the anchors of its document, creating them for the first editor, and draws
+     * its gutter icons. Acquiring an editor twice is harmless.
+     */
+    public void acquire(@NotNull Editor editor) {
+        Document document = editor.getDocument();
+        DocumentCommentAnchors documentAnchors = anchors.get(document);
+        if (documentAnchors == null) {
+            VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+            if (file == null) {
+                return;
+            }
+            documentAnchors = new DocumentCommentAnchors(project, document, file);
+            anchors.put(document, documentAnchors);
+            documentAnchors.attach(editor);
+            documentAnchors.sync();
+            return;
+        }
+        documentAnchors.attach(editor);
+        // Nothing moved for the document, so no change is announced; paint the new editor itself.
+        LineCommentGutterIconRenderer.redrawAllIconsForEditor(project, editor,
+                CommentPathUtil.getRelativePath(project, documentAnchors.getFile()));
+    }
+
+    /**
+     * Syncs and drops the anchors of the document once the last of its editors is released.
+     */
+    public void release(@NotNull Editor editor) {
+        Document document = editor.getDocument();
+        DocumentCommentAnchors documentAnchors = anchors.get(document);
+        if (documentAnchors != null && documentAnchors.detach(editor)) {
+            anchors.remove(document);
+            documentAnchors.sync();
+            documentAnchors.dispose();
+        }
+    }
+
+    /**
+     * Whether an open document of the file is anchored, in which case reloads are re-anchored by its
+     * {@link DocumentCommentAnchors} rather than from disk.
+     */
+    public boolean isAnchored(@NotNull VirtualFile file) {
+        Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+        return document != null && anchors.containsKey(document);
+    }
+
+    public void sync(@NotNull Document document) {
+        DocumentCommentAnchors documentAnchors = anchors.get(document);
+        if (documentAnchors != null) {
+            documentAnchors.sync();
+        }
+    }
+
+    public void syncAll() {
+        for (DocumentCommentAnchors documentAnchors : new ArrayList<>(anchors.values())) {
+            documentAnchors.sync();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        anchors.values().forEach(DocumentCommentAnchors::dispose);
+        anchors.clear();
+    }
+}
@@ -1,28 +1,46 @@
 package com.yuunus90.linecomment;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParseException;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.EOFException;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 @Service
 public final class CommentArchiveService {
 
+    private static final Logger LOG = Logger.getInstance(CommentArchiveService.class);
+
     private final Project project;
-    private static final String ARCHIVE_FILE_NAME = "archive.json";
+    private static final String ARCHIVE_FILE_NAME = "archive.ndjson";
+    private static final String LEGACY_ARCHIVE_FILE_NAME = "archive.json";
+    private final Gson gson = new Gson();
+    private final Object writeLock = new Object();
+    // Guarded by writeLock
+    private boolean archiveChecked;
 
     public CommentArchiveService(Project project) {
         this.project = project;
@@ -33,42 +51,213 @@ public final class CommentArchiveService {
     }
 
     public void archiveComment(ArchivedComment comment) {
-        Path archivePath = getArchivePath();
-        List<ArchivedComment> archivedComments = loadArchivedComments();
-        archivedComments.add(comment);
-        saveArchivedComments(archivedComments);
+        archiveAll(List.of(comment));
     }
 
-    private List<ArchivedComment> loadArchivedComments() {
+    /**
+     * Appends the comments to the archive, one JSON object per line, with a single write and fsync.
+     */
+    public void archiveAll(Collection<ArchivedComment> comments) {
+        if (comments.isEmpty()) {
+            return;
+        }
+        LineCommentMetrics metrics = LineCommentMetrics.getInstance(project);
+        long start = metrics.start();
+        byte[] bytes = serialize(comments);
+        synchronized (writeLock) {
+            ensureArchiveChecked();
+            try {
+                appendToArchive(bytes);
+            } catch (IOException e) {
+                LOG.warn("Could not archive line comments to " + getArchivePath(), e);
+                return;
+            }
+        }
+        metrics.record(LineCommentMetrics.Timer.ARCHIVE_WRITE, start);
+        project.getMessageBus().syncPublisher(LineCommentListener.TOPIC).commentsArchived(comments);
+    }
+
+    /**
+     * Streams every archived comment to the consumer without loading the whole archive. A torn last
+     * line, as left by a crash in the middle of an append, is cut off the first time the archive is used
+     * in a session; one torn later in the session ends the stream until then.
+     */
+    public void forEachArchivedComment(Consumer<ArchivedComment> consumer) {
+        synchronized (writeLock) {
+            ensureArchiveChecked();
+        }
         Path archivePath = getArchivePath();
         if (!Files.exists(archivePath)) {
-            return new ArrayList<>();
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(archivePath, StandardCharsets.UTF_8)) {
+            JsonReader jsonReader = new JsonReader(reader);
+            // Lenient mode accepts several top-level values, one per line.
+            jsonReader.setStrictness(Strictness.LENIENT);
+            while (jsonReader.peek() != JsonToken.END_DOCUMENT) {
+                ArchivedComment comment = gson.fromJson(jsonReader, ArchivedComment.class);
+                if (comment != null) {
+                    consumer.accept(comment);
+                }
+            }
+        } catch (IOException | JsonParseException e) {
+            LOG.warn("Stopped reading line comment archive " + archivePath + " at a malformed entry", e);
+        }
+    }
+
+    private void appendToArchive(byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            return;
+        }
+        Path archivePath = getArchivePath();
+        Files.createDirectories(archivePath.getParent());
+        try (FileChannel channel = FileChannel.open(archivePath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFully(channel, bytes);
+            channel.force(false);
         }
+        LineCommentMetrics metrics = LineCommentMetrics.getInstance(project);
+        metrics.count(LineCommentMetrics.Counter.ARCHIVE_BYTES, bytes.length);
+        metrics.count(LineCommentMetrics.Counter.ARCHIVE_FLUSHES, 1);
+    }
 
-        try (FileReader reader = new FileReader(archivePath.toFile())) {
-            Gson gson = new Gson();
-            Type listType = new TypeToken<ArrayList<ArchivedComment>>() {}.getType();
-            List<ArchivedComment> comments = gson.fromJson(reader, listType);
-            return comments != null ? comments : new ArrayList<>();
+    // Called with writeLock held. Tried once per session, so a failure never holds up archiving.
+    private void ensureArchiveChecked() {
+        if (archiveChecked) {
+            return;
+        }
+        archiveChecked = true;
+        try {
+            migrateLegacyArchive();
         } catch (IOException e) {
-            // Log or handle error appropriately
-            e.printStackTrace();
-            return new ArrayList<>();
+            LOG.warn("Could not migrate legacy line comment archive", e);
+        }
+        try {
+            truncateTornTail();
+        } catch (IOException e) {
+            LOG.warn("Could not repair line comment archive " + getArchivePath(), e);
         }
     }
 
-    private void saveArchivedComments(List<ArchivedComment> comments) {
+    /**
+     * Cuts the archive back to the end of its last complete line, so appends start on a clean line
+     * rather than behind a torn entry that would hide them from every later read. Reads the file
+     * backwards from its end, which for an intact archive is a single byte.
+     */
+    private void truncateTornTail() throws IOException {
         Path archivePath = getArchivePath();
-        try {
-            Files.createDirectories(archivePath.getParent());
-            try (FileWriter writer = new FileWriter(archivePath.toFile())) {
-                Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                gson.toJson(comments, writer);
+        if (!Files.exists(archivePath)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(archivePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long validLength = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (long end = size; end > 0 && validLength == 0; ) {
+                int length = (int) Math.min(buffer.capacity(), end);
+                long position = end - length;
+                buffer.clear().limit(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Line comment archive shrank while being read");
+                    }
+                }
+                for (int i = length - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        validLength = position + i + 1;
+                        break;
+                    }
+                }
+                end = position;
             }
-        } catch (IOException e) {
-            // Log or handle error appropriately
-            e.printStackTrace();
+            if (validLength < size) {
+                LOG.info("Dropping " + (size - validLength) + " bytes of torn line comment archive tail");
+                channel.truncate(validLength);
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Converts the former single JSON array archive into the line-delimited format, streaming it entry
+     * by entry, and keeps the old file as {@code archive.json.migrated}. The converted entries and the
+     * current archive are written to a temporary file first; moving the legacy file aside commits the
+     * migration, and a temporary file found without a legacy file is one whose final rename was
+     * interrupted. Running it again after a crash therefore never duplicates entries. A legacy file that
+     * cannot be parsed is kept as {@code archive.json.malformed}.
+     */
+    private void migrateLegacyArchive() throws IOException {
+        Path archivePath = getArchivePath();
+        Path legacyPath = archivePath.resolveSibling(LEGACY_ARCHIVE_FILE_NAME);
+        Path migratingPath = archivePath.resolveSibling(ARCHIVE_FILE_NAME + ".migrating");
+        if (!Files.exists(legacyPath)) {
+            if (Files.exists(migratingPath)) {
+                replaceArchive(migratingPath, archivePath);
+            }
+            return;
+        }
+        Files.deleteIfExists(migratingPath);
+        try (FileChannel channel = FileChannel.open(migratingPath,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            List<ArchivedComment> batch = new ArrayList<>();
+            try (Reader reader = Files.newBufferedReader(legacyPath, StandardCharsets.UTF_8)) {
+                JsonReader jsonReader = new JsonReader(reader);
+                if (jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+                    jsonReader.beginArray();
+                    while (jsonReader.hasNext()) {
+                        batch.add(gson.fromJson(jsonReader, ArchivedComment.class));
+                        if (batch.size() == 1000) {
+                            writeFully(channel, serialize(batch));
+                            batch.clear();
+                        }
+                    }
+                }
+            } catch (MalformedJsonException | EOFException | JsonParseException | IllegalStateException e) {
+                LOG.warn("Could not parse legacy line comment archive " + legacyPath + ", keeping it aside", e);
+                channel.close();
+                Files.deleteIfExists(migratingPath);
+                Files.move(legacyPath, legacyPath.resolveSibling(LEGACY_ARCHIVE_FILE_NAME + ".malformed"),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+            writeFully(channel, serialize(batch));
+            if (Files.exists(archivePath)) {
+                try (FileChannel archive = FileChannel.open(archivePath, StandardOpenOption.READ)) {
+                    long position = 0;
+                    long size = archive.size();
+                    while (position < size) {
+                        position += archive.transferTo(position, size - position, channel);
+                    }
+                }
+            }
+            channel.force(false);
+        }
+        Files.move(legacyPath, legacyPath.resolveSibling(LEGACY_ARCHIVE_FILE_NAME + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+        replaceArchive(migratingPath, archivePath);
+    }
+
+    private static void replaceArchive(Path source, Path archivePath) throws IOException {
+        try {
+            Files.move(source, archivePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, archivePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private byte[] serialize(Collection<ArchivedComment> comments) {
+        StringBuilder builder = new StringBuilder();
+        for (ArchivedComment comment : comments) {
+            builder.append(gson.toJson(comment)).append('\n');
         }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     private Path getArchivePath() {
@@ -80,4 +269,4 @@ public final class CommentArchiveService {
         }
         return Paths.get(projectBasePath, ".idea", ARCHIVE_FILE_NAME);
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,282 @@
+package com.yuunus90.linecomment;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of comment changes kept next to the notes shards. Every journal starts with a
+ * {@code base} record holding the generation it applies on top of; a shard written at a later generation
+ * already contains the journal's records for its file.
+ */
+final class CommentJournal {
+
+    private static final Logger LOG = Logger.getInstance(CommentJournal.class);
+
+    static final String COMPACT_THRESHOLD_KEY = "linecomment.journal.compact.bytes";
+
+    static final class Record {
+        static final String BASE = "base";
+        static final String ADD = "add";
+        static final String UPDATE = "update";
+        static final String REMOVE = "remove";
+        static final String SHIFT = "shift";
+        static final String REPLACE = "replace";
+        static final String RENAME = "rename";
+
+        String op;
+        String path;
+        String target;
+        int line;
+        String comment;
+        long timestamp;
+        int delta;
+        long base;
+        String anchor;
+        long context;
+        List<Record> entries;
+
+        static Record base(long generation) {
+            Record record = new Record();
+            record.op = BASE;
+            record.base = generation;
+            return record;
+        }
+
+        static Record add(LineComment comment) {
+            Record record = new Record();
+            record.op = ADD;
+            record.path = comment.getFilePath();
+            record.line = comment.getLineNumber();
+            record.comment = comment.getComment();
+            record.timestamp = comment.getCreationTimestamp();
+            record.anchor = comment.getAnchorText();
+            record.context = comment.getContextHash();
+            return record;
+        }
+
+        static Record update(String path, int line, String comment) {
+            Record record = new Record();
+            record.op = UPDATE;
+            record.path = path;
+            record.line = line;
+            record.comment = comment;
+            return record;
+        }
+
+        static Record remove(String path, int line) {
+            Record record = new Record();
+            record.op = REMOVE;
+            record.path = path;
+            record.line = line;
+            return record;
+        }
+
+        static Record shift(String path, int startLine, int delta) {
+            Record record = new Record();
+            record.op = SHIFT;
+            record.path = path;
+            record.line = startLine;
+            record.delta = delta;
+            return record;
+        }
+
+        static Record replace(String path, Map<Integer, LineComment> lineToComment) {
+            Record record = new Record();
+            record.op = REPLACE;
+            record.path = path;
+            record.entries = entries(lineToComment);
+            return record;
+        }
+
+        /**
+         * Carries the moved comments themselves, so the source and target file can each be replayed on
+         * their own against the generation of their shard.
+         */
+        static Record rename(String path, String target, Map<Integer, LineComment> lineToComment) {
+            Record record = new Record();
+            record.op = RENAME;
+            record.path = path;
+            record.target = target;
+            record.entries = entries(lineToComment);
+            return record;
+        }
+
+        private static List<Record> entries(Map<Integer, LineComment> lineToComment) {
+            List<Record> entries = new ArrayList<>(lineToComment.size());
+            lineToComment.forEach((line, comment) -> {
+                Record entry = new Record();
+                entry.line = line;
+                entry.comment = comment.getComment();
+                entry.timestamp = comment.getCreationTimestamp();
+                entry.anchor = comment.getAnchorText();
+                entry.context = comment.getContextHash();
+                entries.add(entry);
+            });
+            return entries;
+        }
+    }
+
+    private final Path journalPath;
+    private final Gson gson = new Gson();
+    private final List<Record> pending = new ArrayList<>(); // Guarded by this
+    private long baseGeneration;
+
+    CommentJournal(@NotNull Path journalPath) {
+        this.journalPath = journalPath;
+    }
+
+    long generation() {
+        return baseGeneration;
+    }
+
+    synchronized void record(@NotNull Record record) {
+        pending.add(record);
+    }
+
+    synchronized List<Record> drain() {
+        if (pending.isEmpty()) {
+            return List.of();
+        }
+        List<Record> drained = new ArrayList<>(pending);
+        pending.clear();
+        return drained;
+    }
+
+    /**
+     * Appends the records with a single write and fsync. Starts a new journal on top of the current
+     * base generation if none exists yet.
+     */
+    void append(@NotNull List<Record> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        StringBuilder builder = new StringBuilder();
+        if (!Files.exists(journalPath) || Files.size(journalPath) == 0) {
+            builder.append(gson.toJson(Record.base(baseGeneration))).append('\n');
+        }
+        for (Record record : records) {
+            builder.append(gson.toJson(record)).append('\n');
+        }
+        Files.createDirectories(journalPath.getParent());
+        try (FileChannel channel = FileChannel.open(journalPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    long size() {
+        try {
+            return Files.exists(journalPath) ? Files.size(journalPath) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    boolean exceedsCompactionThreshold() {
+        return size() > Registry.intValue(COMPACT_THRESHOLD_KEY, 256 * 1024);
+    }
+
+    /**
+     * Starts an empty journal on top of the given generation once every earlier record has been folded
+     * into the shards.
+     */
+    void reset(long generation) throws IOException {
+        NotesFileUtil.writeAtomically(journalPath, gson.toJson(Record.base(generation)) + "\n");
+        baseGeneration = generation;
+    }
+
+    /**
+     * Replays every complete record and returns the generation they apply on top of. A torn or
+     * unparsable tail, as left by a crash in the middle of an append, is cut off so later appends start
+     * on a clean line.
+     */
+    long replay(@NotNull Consumer<Record> consumer) {
+        baseGeneration = 0;
+        if (!Files.exists(journalPath)) {
+            return baseGeneration;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(journalPath);
+        } catch (IOException e) {
+            LOG.warn("Could not read line comment journal " + journalPath, e);
+            return baseGeneration;
+        }
+
+        List<Record> records = new ArrayList<>();
+        int validLength = 0;
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            Record record = parse(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8));
+            if (record == null) {
+                break;
+            }
+            records.add(record);
+            lineStart = i + 1;
+            validLength = lineStart;
+        }
+
+        if (records.isEmpty() || !Record.BASE.equals(records.get(0).op)) {
+            LOG.warn("Discarding line comment journal without a base record: " + journalPath);
+            discard();
+            return baseGeneration;
+        }
+        baseGeneration = records.get(0).base;
+        for (Record record : records.subList(1, records.size())) {
+            consumer.accept(record);
+        }
+        if (validLength < bytes.length) {
+            LOG.info("Dropping " + (bytes.length - validLength) + " bytes of torn line comment journal tail");
+            truncate(validLength);
+        }
+        return baseGeneration;
+    }
+
+    private Record parse(String line) {
+        try {
+            Record record = gson.fromJson(line, Record.class);
+            return record != null && record.op != null ? record : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private void truncate(long length) {
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+            channel.force(false);
+        } catch (IOException e) {
+            LOG.warn("Could not truncate line comment journal " + journalPath, e);
+        }
+    }
+
+    private void discard() {
+        try {
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            LOG.warn("Could not delete stale line comment journal " + journalPath, e);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+public final class CommentNavigation {
+
+    private CommentNavigation() {
+        // Private constructor for utility class
+    }
+
+    /**
+     * Opens the project-relative file at the given 0-based line. Returns false if the file no longer
+     * exists.
+     */
+    public static boolean navigate(@NotNull Project project, @NotNull String filePath, int lineNumber) {
+        String basePath = project.getBasePath();
+        if (basePath == null) {
+            return false;
+        }
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(basePath + "/" + filePath);
+        if (file == null) {
+            return false;
+        }
+        new OpenFileDescriptor(project, file, Math.max(lineNumber, 0), 0).navigate(true);
+        return true;
+    }
+}
@@ -0,0 +1,200 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns project-relative paths as small int ids and caches the relative path of every file asked for.
+ * Comment maps are keyed by these ids, so renaming or moving a file only changes the path behind its id.
+ * The file cache is dropped on bulk VFS rename, move and delete events, which are also forwarded to
+ * {@link LineCommentService#renamePaths} in one batch. Files changed on disk from outside the IDE are
+ * handed to {@link CommentReanchorService}, changed comment shards to {@link NotesReloadService}.
+ */
+@Service(Service.Level.PROJECT)
+public final class CommentPathTable implements Disposable {
+
+    private final Project project;
+    private final String basePrefix;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<VirtualFile, String> relativePaths = new ConcurrentHashMap<>();
+    private volatile String[] paths = new String[16]; // Writes guarded by this
+    private int nextId;
+
+    public CommentPathTable(Project project) {
+        this.project = project;
+        String basePath = project.getBasePath();
+        this.basePrefix = basePath != null ? basePath + "/" : null;
+        project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends @NotNull VFileEvent> events) {
+                handleEvents(events);
+            }
+        });
+    }
+
+    public static CommentPathTable getInstance(@NotNull Project project) {
+        return project.getService(CommentPathTable.class);
+    }
+
+    /**
+     * Gets the file path relative to the project's base directory, or the absolute path for files
+     * outside of it.
+     */
+    public String getRelativePath(@NotNull VirtualFile file) {
+        String cached = relativePaths.get(file);
+        if (cached != null) {
+            return cached;
+        }
+        String relativePath = relativize(file.getPath());
+        String interned = pathOf(idOf(relativePath));
+        relativePaths.put(file, interned);
+        return interned;
+    }
+
+    public int idOf(@NotNull String path) {
+        Integer id = ids.get(path);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(path);
+            if (id == null) {
+                id = assign(path);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Returns the id of the path without interning it, or -1 if it has never been seen.
+     */
+    public int findId(@NotNull String path) {
+        Integer id = ids.get(path);
+        return id != null ? id : -1;
+    }
+
+    public String pathOf(int id) {
+        return paths[id];
+    }
+
+    /**
+     * Points the id of {@code oldPath} at {@code newPath} and gives {@code oldPath} a fresh id. Returns
+     * the id that now belongs to {@code newPath}.
+     */
+    synchronized int rename(@NotNull String oldPath, @NotNull String newPath) {
+        int id = idOf(oldPath);
+        ids.remove(oldPath);
+        ids.put(newPath, id);
+        String[] current = paths;
+        current[id] = newPath;
+        paths = current;
+        return id;
+    }
+
+    // Called with this held
+    private int assign(String path) {
+        int id = nextId++;
+        String[] current = paths;
+        if (id >= current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[id] = path;
+        paths = current;
+        ids.put(path, id);
+        return id;
+    }
+
+    private String relativize(String absolutePath) {
+        if (basePrefix != null && absolutePath.startsWith(basePrefix)) {
+            return absolutePath.substring(basePrefix.length());
+        }
+        return absolutePath;
+    }
+
+    private void handleEvents(List<? extends VFileEvent> events) {
+        Map<String, String> renamedFiles = new LinkedHashMap<>();
+        Map<String, String> renamedDirectories = new LinkedHashMap<>();
+        List<VirtualFile> externallyChanged = new ArrayList<>();
+        List<Path> changedShards = new ArrayList<>();
+        NotesReloadService reloadService = NotesReloadService.getInstance(project);
+        boolean invalidate = false;
+        for (VFileEvent event : events) {
+            if (reloadService.isShardFile(event.getPath())) {
+                if (event instanceof VFileContentChangeEvent || event instanceof VFileCreateEvent || event instanceof VFileDeleteEvent) {
+                    changedShards.add(Paths.get(event.getPath()));
+                }
+                continue;
+            }
+            if (event instanceof VFileContentChangeEvent contentEvent) {
+                if (contentEvent.isFromRefresh()) {
+                    externallyChanged.add(contentEvent.getFile());
+                }
+                continue;
+            }
+            String oldPath = null;
+            String newPath = null;
+            if (event instanceof VFileMoveEvent moveEvent) {
+                oldPath = moveEvent.getOldPath();
+                newPath = moveEvent.getNewPath();
+            } else if (event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename()) {
+                oldPath = propertyEvent.getOldPath();
+                newPath = propertyEvent.getNewPath();
+            } else if (!(event instanceof VFileDeleteEvent)) {
+                continue;
+            }
+            invalidate = true;
+            String oldRelative = oldPath != null ? relativeOrNull(oldPath) : null;
+            String newRelative = newPath != null ? relativeOrNull(newPath) : null;
+            if (oldRelative != null && newRelative != null && !oldRelative.equals(newRelative)) {
+                (event.getFile() != null && event.getFile().isDirectory() ? renamedDirectories : renamedFiles)
+                        .put(oldRelative, newRelative);
+            }
+        }
+        if (invalidate) {
+            // Cheaper than working out every descendant of a moved directory; entries refill on demand.
+            relativePaths.clear();
+        }
+        if (!renamedFiles.isEmpty() || !renamedDirectories.isEmpty()) {
+            // Right away, before editors and anchors look the comments up under the new paths. Only moves
+            // ids in memory; writing the change out is left to the service's write-behind.
+            LineCommentService.getInstance(project).renamePaths(renamedFiles, renamedDirectories);
+        }
+        if (!externallyChanged.isEmpty()) {
+            CommentReanchorService.getInstance(project).reanchorFiles(externallyChanged);
+        }
+        if (!changedShards.isEmpty()) {
+            reloadService.reload(changedShards);
+        }
+    }
+
+    @Nullable
+    private String relativeOrNull(String absolutePath) {
+        return basePrefix != null && absolutePath.startsWith(basePrefix) ? absolutePath.substring(basePrefix.length()) : null;
+    }
+
+    @Override
+    public void dispose() {
+        relativePaths.clear();
+    }
+}
@@ -0,0 +1,236 @@
+package com.yuunus90.linecomment;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Relocates comments after their file changed without our anchors seeing the edit, e.g. a checkout,
+ * rebase or formatter run. Each comment carries the normalized text of its line and a hash of the two
+ * lines around it, captured whenever its position was last known to be right.
+ * <p>
+ * Lines are hashed once and only lines whose hash some comment looks for are indexed. A comment keeps
+ * its line if that line still matches, otherwise it moves to the nearest exact match, preferring one
+ * whose neighbours match too, and failing that to the most similar line within {@link #FUZZY_WINDOW}
+ * lines. Every step is bounded per comment, so the whole pass stays linear in the size of the file.
+ */
+final class CommentReanchor {
+
+    static final int MAX_ANCHOR_LENGTH = 120;
+    private static final int FUZZY_WINDOW = 64;
+    private static final int MAX_CANDIDATES = 64;
+    private static final double MIN_SIMILARITY = 0.5;
+
+    private CommentReanchor() {
+    }
+
+    /**
+     * Returns the anchor text of a line: trimmed and capped, so reindenting does not break matches.
+     */
+    static String normalize(@NotNull CharSequence line) {
+        String trimmed = line.toString().strip();
+        return trimmed.length() > MAX_ANCHOR_LENGTH ? trimmed.substring(0, MAX_ANCHOR_LENGTH) : trimmed;
+    }
+
+    static long hash(@NotNull String normalized) {
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static long contextHash(long previousLineHash, long nextLineHash) {
+        return previousLineHash * 31 + nextLineHash;
+    }
+
+    /**
+     * Returns the comment anchored to the current text around {@code line}: the comment itself if its
+     * anchor is still right, otherwise a copy with the new anchor to publish in its place.
+     */
+    static LineComment capture(@NotNull LineComment comment, int line, int lineCount, @NotNull IntFunction<CharSequence> lineText) {
+        if (line < 0 || line >= lineCount) {
+            return comment;
+        }
+        long previous = line > 0 ? hash(normalize(lineText.apply(line - 1))) : 0;
+        long next = line + 1 < lineCount ? hash(normalize(lineText.apply(line + 1))) : 0;
+        return comment.withAnchor(normalize(lineText.apply(line)), contextHash(previous, next));
+    }
+
+    /**
+     * Returns the comments keyed by the line they belong on in the new text. Comments without a match
+     * stay on, or as close as possible to, their old line. Only when the file now has fewer lines than
+     * comments are the leftovers left out, each handed to {@code dropped} with its old line.
+     */
+    static Map<Integer, LineComment> reanchor(@NotNull Map<Integer, LineComment> comments, int lineCount,
+                                              @NotNull IntFunction<CharSequence> lineText,
+                                              @NotNull ObjIntConsumer<LineComment> dropped) {
+        String[] normalizedLines = new String[lineCount];
+        long[] lineHashes = new long[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            normalizedLines[i] = normalize(lineText.apply(i));
+            lineHashes[i] = hash(normalizedLines[i]);
+        }
+        Long2ObjectOpenHashMap<IntArrayList> candidates = new Long2ObjectOpenHashMap<>();
+        for (LineComment comment : comments.values()) {
+            if (comment.getAnchorText() != null) {
+                candidates.put(hash(comment.getAnchorText()), new IntArrayList());
+            }
+        }
+        for (int i = 0; i < lineCount; i++) {
+            IntArrayList lines = candidates.get(lineHashes[i]);
+            if (lines != null) {
+                lines.add(i); // Ascending, as lines are visited in order
+            }
+        }
+
+        Map<Integer, LineComment> result = new HashMap<>();
+        IntOpenHashSet taken = new IntOpenHashSet();
+        Map<Integer, LineComment> unplaced = new TreeMap<>();
+        // Exact matches are placed first so a fuzzy match never takes a line another comment owns.
+        for (Map.Entry<Integer, LineComment> entry : new TreeMap<>(comments).entrySet()) {
+            LineComment comment = entry.getValue();
+            int target = comment.getAnchorText() != null
+                    ? exactMatch(comment, entry.getKey(), lineHashes, candidates.get(hash(comment.getAnchorText())), taken)
+                    : -1;
+            if (target >= 0) {
+                place(result, taken, target, comment);
+            } else {
+                unplaced.put(entry.getKey(), comment);
+            }
+        }
+        unplaced.forEach((oldLine, comment) -> {
+            int target = comment.getAnchorText() != null ? fuzzyMatch(comment.getAnchorText(), oldLine, normalizedLines, taken) : -1;
+            int line = target >= 0 ? target : nearestFree(oldLine, lineCount, taken);
+            if (line >= 0) {
+                place(result, taken, line, comment);
+            } else {
+                dropped.accept(comment, oldLine);
+            }
+        });
+        return result;
+    }
+
+    private static void place(Map<Integer, LineComment> result, IntOpenHashSet taken, int line, LineComment comment) {
+        result.put(line, comment);
+        taken.add(line);
+    }
+
+    private static int exactMatch(LineComment comment, int oldLine, long[] lineHashes, @Nullable IntArrayList lines, IntOpenHashSet taken) {
+        long anchorHash = hash(comment.getAnchorText());
+        if (oldLine >= 0 && oldLine < lineHashes.length && lineHashes[oldLine] == anchorHash && !taken.contains(oldLine)) {
+            return oldLine;
+        }
+        if (lines == null || lines.isEmpty()) {
+            return -1;
+        }
+        // Walk outwards from the old line over a bounded number of candidates.
+        int upper = lowerBound(lines, oldLine);
+        int lower = upper - 1;
+        int best = -1;
+        for (int examined = 0; examined < MAX_CANDIDATES && (lower >= 0 || upper < lines.size()); examined++) {
+            int line;
+            if (lower < 0 || (upper < lines.size() && lines.getInt(upper) - oldLine <= oldLine - lines.getInt(lower))) {
+                line = lines.getInt(upper++);
+            } else {
+                line = lines.getInt(lower--);
+            }
+            if (taken.contains(line)) {
+                continue;
+            }
+            if (contextAt(lineHashes, line) == comment.getContextHash()) {
+                return line;
+            }
+            if (best < 0) {
+                best = line;
+            }
+        }
+        return best;
+    }
+
+    private static long contextAt(long[] lineHashes, int line) {
+        long previous = line > 0 ? lineHashes[line - 1] : 0;
+        long next = line + 1 < lineHashes.length ? lineHashes[line + 1] : 0;
+        return contextHash(previous, next);
+    }
+
+    private static int lowerBound(IntArrayList sorted, int value) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted.getInt(middle) < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int fuzzyMatch(String anchor, int oldLine, String[] normalizedLines, IntOpenHashSet taken) {
+        int lineCount = normalizedLines.length;
+        int best = -1;
+        double bestScore = MIN_SIMILARITY;
+        int from = Math.max(0, Math.min(oldLine, lineCount) - FUZZY_WINDOW);
+        int to = Math.min(lineCount, Math.max(oldLine, 0) + FUZZY_WINDOW + 1);
+        for (int line = from; line < to; line++) {
+            if (taken.contains(line)) {
+                continue;
+            }
+            double score = similarity(anchor, normalizedLines[line]);
+            if (score > bestScore || (score == bestScore && best >= 0 && Math.abs(line - oldLine) < Math.abs(best - oldLine))) {
+                best = line;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Dice coefficient over character bigrams, in O(length) thanks to the capped anchor length.
+     */
+    static double similarity(String a, String b) {
+        if (a.length() < 2 || b.length() < 2) {
+            return a.equals(b) ? 1 : 0;
+        }
+        Map<Integer, Integer> bigrams = new HashMap<>();
+        for (int i = 0; i + 1 < a.length(); i++) {
+            bigrams.merge(a.charAt(i) << 16 | a.charAt(i + 1), 1, Integer::sum);
+        }
+        int shared = 0;
+        for (int i = 0; i + 1 < b.length(); i++) {
+            int bigram = b.charAt(i) << 16 | b.charAt(i + 1);
+            Integer count = bigrams.get(bigram);
+            if (count != null && count > 0) {
+                bigrams.put(bigram, count - 1);
+                shared++;
+            }
+        }
+        return 2.0 * shared / (a.length() - 1 + b.length() - 1);
+    }
+
+    // Searches outwards from the old line, clamped into the file, and returns -1 if every line is taken.
+    private static int nearestFree(int line, int lineCount, IntOpenHashSet taken) {
+        int start = Math.max(0, Math.min(line, lineCount - 1));
+        for (int distance = 0; start + distance < lineCount || start - distance >= 0; distance++) {
+            if (start + distance < lineCount && !taken.contains(start + distance)) {
+                return start + distance;
+            }
+            if (start - distance >= 0 && !taken.contains(start - distance)) {
+                return start - distance;
+            }
+        }
+        return -1;
+    }
+}
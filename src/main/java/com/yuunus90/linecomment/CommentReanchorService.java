@@ -0,0 +1,155 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-anchors the comments of files that changed on disk while no editor had them open, e.g. after a
+ * branch switch. Changed files are collected across VFS events and handled by one background task at a
+ * time: files without comments are filtered out without loading them, the rest are re-anchored in
+ * parallel, and the results are applied to {@link LineCommentService} in a single batch, whose one
+ * change notification redraws the gutters.
+ * <p>
+ * Open documents are left to their {@link DocumentCommentAnchors}, which see the reload as a whole-text
+ * replacement. Cancelling the task leaves the remaining comments where they were. Comments left over
+ * because a file now has fewer lines than comments are archived.
+ */
+@Service(Service.Level.PROJECT)
+public final class CommentReanchorService {
+
+    private static final Logger LOG = Logger.getInstance(CommentReanchorService.class);
+
+    private record Result(Map<Integer, LineComment> before, Map<Integer, LineComment> after, List<ArchivedComment> dropped) {
+    }
+
+    private final Project project;
+    private final Set<VirtualFile> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public CommentReanchorService(Project project) {
+        this.project = project;
+    }
+
+    public static CommentReanchorService getInstance(@NotNull Project project) {
+        return project.getService(CommentReanchorService.class);
+    }
+
+    /**
+     * Queues the files for re-anchoring. Files queued while a task is running are picked up by the next.
+     */
+    public void reanchorFiles(@NotNull Collection<VirtualFile> files) {
+        pending.addAll(files);
+        if (scheduled.compareAndSet(false, true)) {
+            ApplicationManager.getApplication().invokeLater(this::queueTask, project.getDisposed());
+        }
+    }
+
+    private void queueTask() {
+        new Task.Backgroundable(project, "Satır yorumları yeniden konumlandırılıyor", true) {
+            private final Map<String, Result> results = new ConcurrentHashMap<>();
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                // Cleared before draining, so files queued from here on schedule another task.
+                scheduled.set(false);
+                List<VirtualFile> files = new ArrayList<>(pending);
+                pending.removeAll(files);
+                LineCommentService.getInstance(project).whenLoaded().join();
+                reconcile(files, indicator, results);
+            }
+
+            @Override
+            public void onSuccess() {
+                apply(results);
+            }
+        }.queue();
+    }
+
+    private void reconcile(List<VirtualFile> files, ProgressIndicator indicator, Map<String, Result> results) {
+        LineCommentService service = LineCommentService.getInstance(project);
+        LineCommentMetrics metrics = LineCommentMetrics.getInstance(project);
+        long start = metrics.start();
+        CommentAnchorService anchors = CommentAnchorService.getInstance(project);
+        indicator.setIndeterminate(false);
+        AtomicInteger done = new AtomicInteger();
+        JobLauncher.getInstance().invokeConcurrentlyUnderProgress(files, indicator, file -> {
+            indicator.setFraction((double) done.incrementAndGet() / files.size());
+            if (!file.isValid() || file.isDirectory() || anchors.isAnchored(file)) {
+                return true;
+            }
+            String filePath = CommentPathUtil.getRelativePath(project, file);
+            if (!service.mayHaveComments(filePath)) {
+                return true;
+            }
+            indicator.setText2(filePath);
+            Map<Integer, LineComment> before = service.getCommentsForFile(filePath);
+            if (before.isEmpty()) {
+                return true;
+            }
+            String text;
+            try {
+                text = VfsUtilCore.loadText(file);
+            } catch (IOException e) {
+                LOG.warn("Could not read " + filePath + " to re-anchor its comments", e);
+                return true;
+            }
+            List<String> lines = StringUtil.split(StringUtil.convertLineSeparators(text), "\n", true, false);
+            List<ArchivedComment> dropped = new ArrayList<>();
+            Map<Integer, LineComment> after = CommentReanchor.reanchor(before, lines.size(), lines::get,
+                    (comment, oldLine) -> dropped.add(new ArchivedComment(filePath, oldLine, comment.getComment(),
+                            comment.getAnchorText() != null ? comment.getAnchorText() : "")));
+            if (!after.equals(before)) {
+                results.put(filePath, new Result(before, after, dropped));
+            }
+            return true;
+        });
+        metrics.record(LineCommentMetrics.Timer.RECONCILE, start);
+    }
+
+    // On the EDT
+    private void apply(Map<String, Result> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        LineCommentService service = LineCommentService.getInstance(project);
+        List<ArchivedComment> dropped = new ArrayList<>();
+        service.runBatch(() -> {
+            dropped.clear(); // The batch may run more than once
+            results.forEach((filePath, result) -> {
+                // Skip files whose comments were edited while the task ran rather than overwrite the edit.
+                if (service.getCommentsForFile(filePath).equals(result.before())) {
+                    service.replaceCommentsForFile(filePath, result.after());
+                    dropped.addAll(result.dropped());
+                }
+            });
+        });
+        if (!dropped.isEmpty()) {
+            // No editor will close on these files to offer them, so they are archived right away.
+            new Task.Backgroundable(project, "Silinen yorumlar arşivleniyor", false) {
+                @Override
+                public void run(@NotNull ProgressIndicator indicator) {
+                    CommentArchiveService.getInstance(project).archiveAll(dropped);
+                }
+            }.queue();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * In-memory inverted index from lower-cased word tokens to live and archived comments. Built once on
+ * first use and kept current through {@link LineCommentListener}; queries never touch the notes files.
+ */
+@Service(Service.Level.PROJECT)
+public final class CommentSearchIndex implements Disposable {
+
+    public record Hit(String filePath, int lineNumber, String comment, boolean archived) {}
+
+    private static final class Entry {
+        final String filePath;
+        final int line;
+        final LineComment live;
+        final ArchivedComment archived;
+        final String[] tokens;
+
+        Entry(String filePath, int line, LineComment live, ArchivedComment archived, String[] tokens) {
+            this.filePath = filePath;
+            this.line = line;
+            this.live = live;
+            this.archived = archived;
+            this.tokens = tokens;
+        }
+
+        Hit toHit() {
+            return live != null
+                    ? new Hit(filePath, line, live.getComment(), false)
+                    : new Hit(filePath, line, archived.getComment(), true);
+        }
+    }
+
+    private final Project project;
+    private final Object lock = new Object();
+    // All guarded by lock
+    private final TreeMap<String, IntOpenHashSet> postings = new TreeMap<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private final IntArrayList freeIds = new IntArrayList();
+    private final Map<String, IntArrayList> liveIdsByFile = new HashMap<>();
+    // Changes announced while the index is being built, applied at its end. Kept apart from lock, so
+    // listeners never wait for a build.
+    private final Object pendingLock = new Object();
+    private final Set<String> changedDuringBuild = new LinkedHashSet<>(); // Guarded by pendingLock
+    private final List<ArchivedComment> archivedDuringBuild = new ArrayList<>(); // Guarded by pendingLock
+    private volatile boolean built; // Set with pendingLock held
+
+    public CommentSearchIndex(Project project) {
+        this.project = project;
+    }
+
+    public static CommentSearchIndex getInstance(@NotNull Project project) {
+        return project.getService(CommentSearchIndex.class);
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Indexes every live and archived comment. Reads all shards and streams the archive, so call it off
+     * the EDT; later calls return immediately.
+     */
+    public void ensureBuilt() {
+        if (built) {
+            return;
+        }
+        synchronized (lock) {
+            if (built) {
+                return;
+            }
+            // Subscribe first so nothing changed while building is missed; what is announced meanwhile is
+            // queued and applied once the build is done.
+            project.getMessageBus().connect(this).subscribe(LineCommentListener.TOPIC, new LineCommentListener() {
+                @Override
+                public void commentsChanged(@NotNull Collection<String> filePaths) {
+                    synchronized (pendingLock) {
+                        if (!built) {
+                            changedDuringBuild.addAll(filePaths);
+                            return;
+                        }
+                    }
+                    filePaths.forEach(CommentSearchIndex.this::reindexFile);
+                }
+
+                @Override
+                public void commentsArchived(@NotNull Collection<ArchivedComment> comments) {
+                    synchronized (pendingLock) {
+                        if (!built) {
+                            archivedDuringBuild.addAll(comments);
+                            return;
+                        }
+                    }
+                    synchronized (lock) {
+                        comments.forEach(comment -> addEntry(comment.getFilePath(), comment.getOriginalLineNumber(), null, comment));
+                    }
+                }
+            });
+            LineCommentService.getInstance(project).getAllCommentsByFile().forEach((filePath, fileComments) ->
+                    fileComments.forEach((line, comment) -> addLiveEntry(filePath, line, comment)));
+            CommentArchiveService.getInstance(project).forEachArchivedComment(comment ->
+                    addEntry(comment.getFilePath(), comment.getOriginalLineNumber(), null, comment));
+            synchronized (pendingLock) {
+                changedDuringBuild.forEach(this::reindexFile);
+                // The stream may already have read comments archived while it ran.
+                for (ArchivedComment comment : archivedDuringBuild) {
+                    if (!containsArchived(comment)) {
+                        addEntry(comment.getFilePath(), comment.getOriginalLineNumber(), null, comment);
+                    }
+                }
+                changedDuringBuild.clear();
+                archivedDuringBuild.clear();
+                built = true;
+            }
+        }
+    }
+
+    // Called with lock held. A linear scan, only used for the few comments archived during the build.
+    private boolean containsArchived(ArchivedComment comment) {
+        for (Entry entry : entries) {
+            if (entry != null && entry.archived != null
+                    && entry.archived.getOriginalLineNumber() == comment.getOriginalLineNumber()
+                    && Objects.equals(entry.archived.getFilePath(), comment.getFilePath())
+                    && Objects.equals(entry.archived.getComment(), comment.getComment())
+                    && Objects.equals(entry.archived.getDeletedCodeLine(), comment.getDeletedCodeLine())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns comments containing every word of the query, each as a word prefix, so partial input
+     * already matches while typing.
+     */
+    public List<Hit> search(@NotNull String query, int limit) {
+        String[] queryTokens = tokenize(query);
+        if (queryTokens.length == 0) {
+            return List.of();
+        }
+        synchronized (lock) {
+            // Start from the token with the fewest candidates and filter the rest against each entry. The
+            // postings of a prefix are walked lazily, so a one-letter query stops at the limit instead of
+            // first collecting every comment with a word starting with that letter.
+            int smallestIndex = -1;
+            long smallestCount = Long.MAX_VALUE;
+            for (int i = 0; i < queryTokens.length; i++) {
+                long count = candidateCount(queryTokens[i], smallestCount);
+                if (count == 0) {
+                    return List.of();
+                }
+                if (count < smallestCount) {
+                    smallestCount = count;
+                    smallestIndex = i;
+                }
+            }
+            return collectHits(prefixPostings(queryTokens[smallestIndex]), queryTokens, smallestIndex, limit);
+        }
+    }
+
+    private Collection<IntOpenHashSet> prefixPostings(String prefix) {
+        return postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+    }
+
+    // Counts the postings of the prefix, an entry once per matching word, giving up once past the cap.
+    private long candidateCount(String prefix, long cap) {
+        long count = 0;
+        for (IntOpenHashSet ids : prefixPostings(prefix)) {
+            count += ids.size();
+            if (count >= cap) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private List<Hit> collectHits(Collection<IntOpenHashSet> candidates, String[] queryTokens, int skip, int limit) {
+        List<Hit> hits = new ArrayList<>();
+        // An entry with several words under the prefix is in several postings
+        IntOpenHashSet seen = candidates.size() > 1 ? new IntOpenHashSet() : null;
+        for (IntOpenHashSet ids : candidates) {
+            for (IntIterator it = ids.iterator(); it.hasNext(); ) {
+                if (hits.size() >= limit) {
+                    return hits;
+                }
+                int id = it.nextInt();
+                if (seen != null && !seen.add(id)) {
+                    continue;
+                }
+                Entry entry = entries.get(id);
+                if (matchesAll(entry, queryTokens, skip)) {
+                    hits.add(entry.toHit());
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static boolean matchesAll(Entry entry, String[] queryTokens, int skip) {
+        for (int i = 0; i < queryTokens.length; i++) {
+            if (i == skip) {
+                continue;
+            }
+            boolean found = false;
+            for (String token : entry.tokens) {
+                if (token.startsWith(queryTokens[i])) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void reindexFile(String filePath) {
+        synchronized (lock) {
+            // Read under the lock, so of two reindexes of the same file the later one sees the later state
+            Map<Integer, LineComment> fileComments = LineCommentService.getInstance(project).getCommentsForFile(filePath);
+            IntArrayList ids = liveIdsByFile.remove(filePath);
+            if (ids != null) {
+                for (int i = 0; i < ids.size(); i++) {
+                    removeEntry(ids.getInt(i));
+                }
+            }
+            fileComments.forEach((line, comment) -> addLiveEntry(filePath, line, comment));
+        }
+    }
+
+    // Called with lock held
+    private void addLiveEntry(String filePath, int line, LineComment comment) {
+        int id = addEntry(filePath, line, comment, null);
+        liveIdsByFile.computeIfAbsent(filePath, k -> new IntArrayList()).add(id);
+    }
+
+    // Called with lock held
+    private int addEntry(String filePath, int line, LineComment live, ArchivedComment archived) {
+        String[] tokens = tokenize(live != null ? live.getComment() : archived.getComment());
+        Entry entry = new Entry(filePath, line, live, archived, tokens);
+        int id;
+        if (freeIds.isEmpty()) {
+            id = entries.size();
+            entries.add(entry);
+        } else {
+            id = freeIds.popInt();
+            entries.set(id, entry);
+        }
+        for (String token : tokens) {
+            postings.computeIfAbsent(token, k -> new IntOpenHashSet()).add(id);
+        }
+        return id;
+    }
+
+    // Called with lock held
+    private void removeEntry(int id) {
+        Entry entry = entries.get(id);
+        for (String token : entry.tokens) {
+            IntOpenHashSet ids = postings.get(token);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(token);
+                }
+            }
+        }
+        entries.set(id, null);
+        freeIds.add(id);
+    }
+
+    static String[] tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return new String[0];
+        }
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!tokens.contains(token)) {
+                    tokens.add(token);
+                }
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (lock) {
+            postings.clear();
+            entries.clear();
+            freeIds.clear();
+            liveIdsByFile.clear();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.yuunus90.linecomment;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Lazy tree of commented files and their comments for the Line Comments tool window. Only the sorted
+ * file list is held up front; comment counts are fetched when a file is shown and comments one page at
+ * a time when their rows are painted, so a fixed-height tree over 100k comments only ever touches the
+ * visible rows. Changes are applied per file. Use on the EDT only.
+ */
+final class CommentTreeModel implements TreeModel {
+
+    static final int PAGE_SIZE = 500;
+
+    record FileNode(String filePath) {}
+
+    record CommentNode(String filePath, int line, @Nullable LineComment comment) {}
+
+    private final Object root = new Object();
+    private final LineCommentService service;
+    private final List<TreeModelListener> listeners = new ArrayList<>();
+    private List<String> files = new ArrayList<>();
+    private final Map<String, Integer> counts = new HashMap<>();
+    private final Map<String, Map<Integer, List<CommentNode>>> pages = new HashMap<>();
+
+    CommentTreeModel(@NotNull LineCommentService service) {
+        this.service = service;
+    }
+
+    void setFiles(@NotNull List<String> sortedFiles) {
+        files = new ArrayList<>(sortedFiles);
+        counts.clear();
+        pages.clear();
+        fire(listener -> listener.treeStructureChanged(new TreeModelEvent(this, new TreePath(root))));
+    }
+
+    /**
+     * Re-reads one file: inserts or removes its node if it gained its first or lost its last comment,
+     * otherwise reloads just its children.
+     */
+    void fileChanged(@NotNull String filePath) {
+        counts.remove(filePath);
+        pages.remove(filePath);
+        int count = service.getCommentCount(filePath);
+        int index = Collections.binarySearch(files, filePath);
+        FileNode node = new FileNode(filePath);
+        TreePath rootPath = new TreePath(root);
+        if (index >= 0 && count == 0) {
+            files.remove(index);
+            fire(listener -> listener.treeNodesRemoved(new TreeModelEvent(this, rootPath, new int[]{index}, new Object[]{node})));
+        } else if (index < 0 && count > 0) {
+            int insertAt = -index - 1;
+            files.add(insertAt, filePath);
+            fire(listener -> listener.treeNodesInserted(new TreeModelEvent(this, rootPath, new int[]{insertAt}, new Object[]{node})));
+        } else if (index >= 0) {
+            fire(listener -> listener.treeStructureChanged(new TreeModelEvent(this, rootPath.pathByAddingChild(node))));
+        }
+    }
+
+    int getCommentCount(@NotNull String filePath) {
+        return counts.computeIfAbsent(filePath, service::getCommentCount);
+    }
+
+    @Override
+    public Object getRoot() {
+        return root;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        if (parent == root) {
+            return new FileNode(files.get(index));
+        }
+        String filePath = ((FileNode) parent).filePath();
+        int page = index / PAGE_SIZE;
+        List<CommentNode> nodes = pages.computeIfAbsent(filePath, k -> new HashMap<>()).computeIfAbsent(page, k -> {
+            List<CommentNode> loaded = new ArrayList<>(PAGE_SIZE);
+            for (Map.Entry<Integer, LineComment> entry : service.getComments(filePath, page * PAGE_SIZE, (page + 1) * PAGE_SIZE)) {
+                loaded.add(new CommentNode(filePath, entry.getKey(), entry.getValue()));
+            }
+            return loaded;
+        });
+        // The file may have lost comments since its count was taken. Until the pending change event
+        // arrives, the missing rows show as empty placeholders.
+        return index % PAGE_SIZE < nodes.size() ? nodes.get(index % PAGE_SIZE) : new CommentNode(filePath, -1, null);
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        if (parent == root) {
+            return files.size();
+        }
+        return parent instanceof FileNode fileNode ? getCommentCount(fileNode.filePath()) : 0;
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return node instanceof CommentNode;
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (parent == root && child instanceof FileNode fileNode) {
+            return Math.max(Collections.binarySearch(files, fileNode.filePath()), -1);
+        }
+        if (parent instanceof FileNode fileNode && child instanceof CommentNode) {
+            Map<Integer, List<CommentNode>> filePages = pages.get(fileNode.filePath());
+            if (filePages != null) {
+                for (Map.Entry<Integer, List<CommentNode>> page : filePages.entrySet()) {
+                    int offset = page.getValue().indexOf(child);
+                    if (offset >= 0) {
+                        return page.getKey() * PAGE_SIZE + offset;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fire(Consumer<TreeModelListener> event) {
+        for (TreeModelListener listener : new ArrayList<>(listeners)) {
+            event.accept(listener);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.undo.UndoManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.RangeMarker;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Anchors the comments of an open document with range markers at the start of their lines. The
+ * platform shifts the markers on every edit, so nothing of ours runs per keystroke; the resulting lines
+ * are written back into {@link LineCommentService} only when {@link #sync()} is called on save, close or
+ * flush.
+ * <p>
+ * There is one instance per document, shared by every editor showing it (split panes, diff views), so
+ * the service is updated once per change however many editors are open. The attached editors are
+ * counted here; when comments move, {@link LineCommentGutterUpdater} redraws them.
+ */
+final class DocumentCommentAnchors implements DocumentListener {
+
+    static final Key<DocumentCommentAnchors> KEY = Key.create("line.comment.document.anchors");
+
+    private record Doomed(RangeMarker marker, int offset, boolean lineRemoved,
+                          LineCommentEditorListener.DeletionCandidate candidate) {}
+
+    // What a copy of a comment shares with it, e.g. one moved onto a renamed file's path
+    private record Content(long creationTimestamp, String text, String anchorText, long contextHash) {
+        static Content of(LineComment comment) {
+            return new Content(comment.getCreationTimestamp(), comment.getComment(), comment.getAnchorText(), comment.getContextHash());
+        }
+    }
+
+    private final Project project;
+    private final Document document;
+    private final VirtualFile file;
+    private final LineCommentMetrics metrics;
+    // Guards the anchor state below: edits arrive on the EDT, but a flush syncs from any thread. Always
+    // taken inside a read or write action, never the other way round.
+    private final Object lock = new Object();
+    private final Map<LineComment, RangeMarker> markers = new IdentityHashMap<>();
+    private final List<Doomed> doomed = new ArrayList<>();
+    // Comments whose line was deleted since the last sync, with where it started, for undo to restore
+    private final Map<LineComment, Doomed> deleted = new IdentityHashMap<>();
+    // Editors showing the document, on the EDT only
+    private final Set<Editor> editors = new LinkedHashSet<>();
+    private boolean reloading;
+    // Start of the edit being handled, timed from beforeDocumentChange to the end of documentChanged
+    private long editStart;
+
+    DocumentCommentAnchors(@NotNull Project project, @NotNull Document document, @NotNull VirtualFile file) {
+        this.project = project;
+        this.document = document;
+        this.file = file;
+        this.metrics = LineCommentMetrics.getInstance(project);
+        document.addDocumentListener(this);
+        document.putUserData(KEY, this);
+    }
+
+    @NotNull
+    Document getDocument() {
+        return document;
+    }
+
+    @NotNull
+    VirtualFile getFile() {
+        return file;
+    }
+
+    void attach(@NotNull Editor editor) {
+        editors.add(editor);
+    }
+
+    /**
+     * Returns whether no editor is left, in which case the anchors should be synced and disposed.
+     */
+    boolean detach(@NotNull Editor editor) {
+        editors.remove(editor);
+        return editors.isEmpty();
+    }
+
+    /**
+     * Redraws the gutter icons of every attached editor. Call on the EDT.
+     */
+    void redraw() {
+        String filePath = CommentPathUtil.getRelativePath(project, file);
+        for (Editor editor : List.copyOf(editors)) {
+            if (!editor.isDisposed()) {
+                LineCommentGutterIconRenderer.redrawAllIconsForEditor(project, editor, filePath);
+            }
+        }
+    }
+
+    @Override
+    public void beforeDocumentChange(@NotNull DocumentEvent event) {
+        editStart = metrics.start();
+        synchronized (lock) {
+            captureDoomed(event);
+        }
+    }
+
+    private void captureDoomed(DocumentEvent event) {
+        doomed.clear();
+        if (markers.isEmpty() || event.getOldLength() == 0) {
+            return;
+        }
+        if (event.isWholeTextReplaced()) {
+            // Reload after an external change: markers cannot follow it, so take the last good positions
+            // and fingerprints now and re-anchor by content once the new text is in.
+            sync();
+            reloading = true;
+            return;
+        }
+        int start = event.getOffset();
+        int end = start + event.getOldLength();
+        // A comment only goes away with its line, which takes a deleted line break. Comparing the line
+        // numbers of both ends answers that without scanning or copying the deleted text.
+        int startLine = document.getLineNumber(start);
+        if (startLine == document.getLineNumber(end)) {
+            return;
+        }
+        // The platform invalidates markers inside the deleted range but keeps the one at its start. That
+        // marker's line is gone as well when the deletion starts at the beginning of the line, as deleting
+        // whole lines does. A marker at the end survives and moves up with the rest of its line, so only
+        // the lines actually removed are captured.
+        boolean startLineRemoved = document.getLineStartOffset(startLine) == start;
+        for (Map.Entry<LineComment, RangeMarker> entry : markers.entrySet()) {
+            RangeMarker marker = entry.getValue();
+            int offset = marker.getStartOffset();
+            if (marker.isValid() && (offset > start && offset < end || offset == start && startLineRemoved)) {
+                doomed.add(new Doomed(marker, offset, offset == start, captureCandidate(entry.getKey(), offset)));
+            }
+        }
+    }
+
+    private LineCommentEditorListener.DeletionCandidate captureCandidate(LineComment comment, int offset) {
+        int line = document.getLineNumber(offset);
+        // Only the commented line itself is copied, never the whole document.
+        CharSequence text = document.getImmutableCharSequence();
+        String lineContent = text.subSequence(document.getLineStartOffset(line), document.getLineEndOffset(line)).toString();
+        return new LineCommentEditorListener.DeletionCandidate(comment, line, lineContent);
+    }
+
+    @Override
+    public void documentChanged(@NotNull DocumentEvent event) {
+        try {
+            synchronized (lock) {
+                handleChange(event);
+            }
+        } finally {
+            metrics.record(LineCommentMetrics.Timer.ANCHOR_EDIT, editStart);
+            editStart = 0;
+        }
+    }
+
+    private void handleChange(DocumentEvent event) {
+        if (reloading) {
+            reloading = false;
+            reanchor();
+            return;
+        }
+        if (!deleted.isEmpty() && event.getNewLength() > 0 && UndoManager.getInstance(project).isUndoOrRedoInProgress()) {
+            restoreUndone(event);
+        }
+        if (doomed.isEmpty()) {
+            return;
+        }
+        LineCommentService service = LineCommentService.getInstance(project);
+        for (Doomed entry : doomed) {
+            if (entry.lineRemoved()) {
+                // Left valid at the deletion point, where it would take over the next line's place.
+                entry.marker().dispose();
+            }
+            if (!entry.marker().isValid()) {
+                service.addPendingDeletedComment(file, entry.candidate());
+                deleted.put(entry.candidate().comment(), entry);
+            }
+        }
+        doomed.clear();
+    }
+
+    /**
+     * Undoing a line deletion puts the same text back at the same offset. Comments whose line start and
+     * content reappear are anchored again and withdrawn from the pending deletions. Only works until the
+     * next sync, which drops comments whose marker died. Their icons died with the line, so the editors
+     * are redrawn.
+     */
+    private void restoreUndone(DocumentEvent event) {
+        int start = event.getOffset();
+        int end = start + event.getNewLength();
+        LineCommentService service = LineCommentService.getInstance(project);
+        Set<LineComment> restored = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Iterator<Map.Entry<LineComment, Doomed>> it = deleted.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<LineComment, Doomed> entry = it.next();
+            int offset = entry.getValue().offset();
+            if (offset < start || offset > end || offset > document.getTextLength()) {
+                continue;
+            }
+            int line = document.getLineNumber(offset);
+            if (document.getLineStartOffset(line) != offset || !entry.getValue().candidate().lineContent().contentEquals(lineText(line))) {
+                continue;
+            }
+            RangeMarker previous = markers.put(entry.getKey(), document.createRangeMarker(offset, offset));
+            if (previous != null) {
+                previous.dispose();
+            }
+            service.withdrawPendingDeletedComment(file, entry.getKey());
+            restored.add(entry.getKey());
+            it.remove();
+        }
+        if (restored.isEmpty()) {
+            return;
+        }
+        // The line that slid up onto the deletion point keeps its marker there when the text comes back in
+        // front of it, so move it behind the restored lines again.
+        if (document.getLineStartOffset(document.getLineNumber(end)) == end) {
+            for (Map.Entry<LineComment, RangeMarker> entry : markers.entrySet()) {
+                RangeMarker marker = entry.getValue();
+                if (!restored.contains(entry.getKey()) && marker.isValid() && marker.getStartOffset() == start) {
+                    entry.setValue(document.createRangeMarker(end, end));
+                    marker.dispose();
+                }
+            }
+        }
+        ApplicationManager.getApplication().invokeLater(this::redraw, project.getDisposed());
+    }
+
+    private void reanchor() {
+        LineCommentService service = LineCommentService.getInstance(project);
+        String filePath = CommentPathUtil.getRelativePath(project, file);
+        Map<Integer, LineComment> current = service.getCommentsForFile(filePath);
+        markers.values().forEach(RangeMarker::dispose);
+        markers.clear();
+        deleted.clear();
+        // Comments that no longer fit in the shorter text are offered for archiving like deleted lines.
+        service.replaceCommentsForFile(filePath, CommentReanchor.reanchor(current, document.getLineCount(), this::lineText,
+                (comment, oldLine) -> service.addPendingDeletedComment(file,
+                        new LineCommentEditorListener.DeletionCandidate(comment, oldLine, anchorTextOf(comment)))));
+        sync();
+    }
+
+    private static String anchorTextOf(LineComment comment) {
+        return comment.getAnchorText() != null ? comment.getAnchorText() : "";
+    }
+
+    private CharSequence lineText(int line) {
+        return document.getImmutableCharSequence().subSequence(document.getLineStartOffset(line), document.getLineEndOffset(line));
+    }
+
+    /**
+     * Writes the anchored lines back into the service, drops comments whose line was deleted and
+     * anchors comments added since the last sync.
+     */
+    void sync() {
+        LineCommentService service = LineCommentService.getInstance(project);
+        if (!service.isLoaded()) {
+            return;
+        }
+        // Looked up on every sync rather than kept, as the file may have been renamed or moved meanwhile.
+        String filePath = CommentPathUtil.getRelativePath(project, file);
+        long start = metrics.start();
+        ReadAction.run(() -> {
+            synchronized (lock) {
+                syncAnchors(service, filePath);
+            }
+        });
+        metrics.record(LineCommentMetrics.Timer.ANCHOR_SYNC, start);
+    }
+
+    private void syncAnchors(LineCommentService service, String filePath) {
+        Map<Integer, LineComment> current = new TreeMap<>(service.getCommentsForFile(filePath));
+        Set<LineComment> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        live.addAll(current.values());
+        // Comments no longer in the service. A copy that took one's place, e.g. on a rename, takes over
+        // its marker; the others were removed through the service since the last sync.
+        Map<Content, LineComment> replaced = new HashMap<>();
+        for (LineComment comment : new ArrayList<>(markers.keySet())) {
+            if (!live.contains(comment) && replaced.putIfAbsent(Content.of(comment), comment) != null) {
+                markers.remove(comment).dispose();
+            }
+        }
+
+        Map<Integer, LineComment> anchored = new HashMap<>();
+        boolean changed = false;
+        for (Map.Entry<Integer, LineComment> entry : current.entrySet()) {
+            int line = entry.getKey();
+            LineComment comment = entry.getValue();
+            RangeMarker marker = markers.get(comment);
+            LineComment original = marker == null ? replaced.remove(Content.of(comment)) : null;
+            if (original != null) {
+                marker = markers.remove(original);
+                markers.put(comment, marker);
+                Doomed doomedEntry = deleted.remove(original);
+                if (doomedEntry != null) {
+                    deleted.put(comment, doomedEntry);
+                }
+            }
+            if (marker == null) {
+                if (line >= 0 && line < document.getLineCount()) {
+                    int offset = document.getLineStartOffset(line);
+                    LineComment captured = CommentReanchor.capture(comment, line, document.getLineCount(), this::lineText);
+                    markers.put(captured, document.createRangeMarker(offset, offset));
+                    changed |= captured != comment;
+                    comment = captured;
+                }
+                anchored.putIfAbsent(line, comment);
+                continue;
+            }
+            if (!marker.isValid()) {
+                markers.remove(comment).dispose();
+                deleted.remove(comment);
+                changed = true;
+                continue;
+            }
+            int anchoredLine = document.getLineNumber(marker.getStartOffset());
+            if (anchoredLine != line) {
+                changed = true;
+            }
+            if (anchored.containsKey(anchoredLine)) {
+                // Joined onto a line that already carries a comment: the earlier one wins and the other is
+                // offered for archiving like one whose line was deleted.
+                markers.remove(comment).dispose();
+                service.addPendingDeletedComment(file, new LineCommentEditorListener.DeletionCandidate(comment, anchoredLine, lineText(anchoredLine).toString()));
+                changed = true;
+            } else {
+                // Keep the fingerprint current, so content re-anchoring starts from the latest good text. A
+                // new fingerprint means a new comment object, as the old one is shared with snapshots.
+                LineComment captured = CommentReanchor.capture(comment, anchoredLine, document.getLineCount(), this::lineText);
+                if (captured != comment) {
+                    markers.put(captured, markers.remove(comment));
+                    changed = true;
+                }
+                anchored.put(anchoredLine, captured);
+            }
+        }
+        // Removed through the service since the last sync
+        for (LineComment comment : replaced.values()) {
+            markers.remove(comment).dispose();
+        }
+        if (changed) {
+            service.replaceCommentsForFile(filePath, anchored);
+        }
+    }
+
+    void dispose() {
+        document.removeDocumentListener(this);
+        document.putUserData(KEY, null);
+        synchronized (lock) {
+            markers.values().forEach(RangeMarker::dispose);
+            markers.clear();
+            doomed.clear();
+            deleted.clear();
+        }
+        editors.clear();
+    }
+}
@@ -0,0 +1,28 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.datatransfer.StringSelection;
+
+public class DumpLineCommentMetricsAction extends AnAction {
+    private static final Logger LOG = Logger.getInstance(DumpLineCommentMetricsAction.class);
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+
+        String dump = LineCommentMetrics.getInstance(project).dump();
+        LOG.info(dump);
+        CopyPasteManager.getInstance().setContents(new StringSelection(dump));
+        Messages.showInfoMessage(project, "Line comment metrics were written to idea.log and copied to the clipboard.", "Line Comment Metrics");
+    }
+}
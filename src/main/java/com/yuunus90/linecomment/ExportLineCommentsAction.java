@@ -0,0 +1,53 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class ExportLineCommentsAction extends AnAction {
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+
+        FileSaverDescriptor descriptor = new FileSaverDescriptor("Export Line Comments", "Save all line comments as JSON", "json");
+        VirtualFileWrapper wrapper = FileChooserFactory.getInstance()
+                .createSaveFileDialog(descriptor, project)
+                .save("line-comments.json");
+        if (wrapper == null) {
+            return;
+        }
+        Path target = wrapper.getFile().toPath();
+
+        new Task.Backgroundable(project, "Satır yorumları dışa aktarılıyor", false) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                LineCommentService service = LineCommentService.getInstance(project);
+                service.whenLoaded().join();
+                try {
+                    service.exportJson(target);
+                } catch (IOException ex) {
+                    showError(project, "Could not export line comments: " + ex.getMessage());
+                }
+            }
+        }.queue();
+    }
+
+    static void showError(Project project, String message) {
+        ApplicationManager.getApplication().invokeLater(
+                () -> Messages.showErrorDialog(project, message, "Line Comments"), project.getDisposed());
+    }
+}
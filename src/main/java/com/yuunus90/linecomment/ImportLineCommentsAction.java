@@ -0,0 +1,52 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class ImportLineCommentsAction extends AnAction {
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+
+        VirtualFile file = FileChooser.chooseFile(
+                FileChooserDescriptorFactory.createSingleFileDescriptor("json"), project, null);
+        if (file == null) {
+            return;
+        }
+        int answer = Messages.showYesNoDialog(project,
+                "All current line comments will be replaced by those in " + file.getName() + ". Continue?",
+                "Import Line Comments", Messages.getQuestionIcon());
+        if (answer != Messages.YES) {
+            return;
+        }
+        Path source = file.toNioPath();
+
+        new Task.Backgroundable(project, "Satır yorumları içe aktarılıyor", false) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                LineCommentService service = LineCommentService.getInstance(project);
+                service.whenLoaded().join();
+                try {
+                    service.importJson(source);
+                } catch (IOException ex) {
+                    ExportLineCommentsAction.showError(project, "Could not import line comments: " + ex.getMessage());
+                }
+                // Open editors re-anchor and redraw the imported comments through LineCommentGutterUpdater.
+            }
+        }.queue();
+    }
+}
@@ -3,15 +3,20 @@ package com.yuunus90.linecomment;
 import java.beans.Transient;
 import java.io.Serializable;
 import java.util.Objects;
+import java.util.function.UnaryOperator;
 
 public class LineComment implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private String filePath;
-    private int lineNumber;
+    // Not persisted: stored comments are keyed by their current line, which this would contradict
+    private transient int lineNumber;
     private String comment;
     private transient boolean isDirty = false;
     private long creationTimestamp;
+    // Fingerprint of the line the comment was last known to sit on, see CommentReanchor
+    private String anchorText;
+    private long contextHash;
 
     public LineComment(String filePath, int lineNumber, String comment) {
         this(filePath, lineNumber, comment, System.currentTimeMillis());
@@ -30,6 +35,10 @@ public class LineComment implements Serializable {
         return filePath;
     }
 
+    /**
+     * The line the comment was created or read back from disk at. Comments move without being changed, so
+     * ask the service or the map a comment came from for its current line.
+     */
     public int getLineNumber() {
         return lineNumber;
     }
@@ -42,25 +51,68 @@ public class LineComment implements Serializable {
         return creationTimestamp;
     }
 
+    public String getAnchorText() {
+        return anchorText;
+    }
+
+    public long getContextHash() {
+        return contextHash;
+    }
+
     // Setters
-    public void setFilePath(String filePath) {
-        if (!Objects.equals(this.filePath, filePath)) {
-            this.filePath = filePath;
+    public void setComment(String comment) {
+        if (!Objects.equals(this.comment, comment)) {
+            this.comment = comment;
             this.isDirty = true;
         }
     }
 
-    public void setLineNumber(int lineNumber) {
-        if (this.lineNumber != lineNumber) {
-            this.lineNumber = lineNumber;
+    public void setAnchor(String anchorText, long contextHash) {
+        if (!Objects.equals(this.anchorText, anchorText) || this.contextHash != contextHash) {
+            this.anchorText = anchorText;
+            this.contextHash = contextHash;
             this.isDirty = true;
         }
     }
 
-    public void setComment(String comment) {
-        if (!Objects.equals(this.comment, comment)) {
-            this.comment = comment;
-            this.isDirty = true;
+    /**
+     * Returns a copy of the comment on another path. Comments in published snapshots are shared, so a
+     * change makes a new comment rather than editing one in place.
+     */
+    LineComment withFilePath(String filePath) {
+        return copy(filePath, anchorText, contextHash);
+    }
+
+    /**
+     * Returns the comment with the given anchor: itself if it already has it, otherwise a copy.
+     */
+    LineComment withAnchor(String anchorText, long contextHash) {
+        if (Objects.equals(this.anchorText, anchorText) && this.contextHash == contextHash) {
+            return this;
+        }
+        return copy(filePath, anchorText, contextHash);
+    }
+
+    private LineComment copy(String filePath, String anchorText, long contextHash) {
+        LineComment copy = new LineComment(filePath, lineNumber, comment, creationTimestamp);
+        copy.anchorText = anchorText;
+        copy.contextHash = contextHash;
+        return copy;
+    }
+
+    /**
+     * Swaps the strings for equal, shared instances: the interned path and pooled texts, and takes the
+     * line the comment was read at. Nothing is persisted differently, so the comment stays as dirty or
+     * clean as it was.
+     */
+    void share(String sharedPath, int line, UnaryOperator<String> texts) {
+        this.filePath = sharedPath;
+        this.lineNumber = line;
+        if (comment != null) {
+            this.comment = texts.apply(comment);
+        }
+        if (anchorText != null) {
+            this.anchorText = texts.apply(anchorText);
         }
     }
 
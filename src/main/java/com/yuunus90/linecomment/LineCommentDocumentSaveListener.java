@@ -0,0 +1,15 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManagerListener;
+import org.jetbrains.annotations.NotNull;
+
+public class LineCommentDocumentSaveListener implements FileDocumentManagerListener {
+    @Override
+    public void beforeDocumentSaving(@NotNull Document document) {
+        DocumentCommentAnchors anchors = document.getUserData(DocumentCommentAnchors.KEY);
+        if (anchors != null) {
+            anchors.sync();
+        }
+    }
+}
@@ -1,19 +1,27 @@
 package com.yuunus90.linecomment;
 
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationAction;
+import com.intellij.notification.NotificationGroupManager;
+import com.intellij.notification.NotificationType;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileEditor.FileEditorManagerListener;
 import com.intellij.openapi.fileEditor.TextEditor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 public class LineCommentFileEditorListener implements FileEditorManagerListener {
+    static final String NOTIFICATION_GROUP = "Line Comments";
+
     private final Project project;
 
     public LineCommentFileEditorListener(@NotNull Project project) {
@@ -24,6 +32,15 @@ public class LineCommentFileEditorListener implements FileEditorManagerListener
     public void fileOpened(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
         LineCommentService service = LineCommentService.getInstance(project);
         String relativePath = CommentPathUtil.getRelativePath(project, file);
+        if (!service.isLoaded()) {
+            // Replayed once the notes are loaded; the editor may already carry icons by then, so redraw.
+            service.runWhenLoaded(() -> {
+                if (source.isFileOpen(file)) {
+                    redrawEditors(source, file, relativePath);
+                }
+            });
+            return;
+        }
         Map<Integer, LineComment> comments = service.getCommentsForFile(relativePath);
 
         if (comments.isEmpty()) {
@@ -35,40 +52,60 @@ public class LineCommentFileEditorListener implements FileEditorManagerListener
             if (fileEditor instanceof TextEditor) {
                 Editor editor = ((TextEditor) fileEditor).getEditor();
                 comments.forEach((line, comment) -> {
-                    LineCommentGutterIconRenderer.addGutterIcon(editor, comment);
+                    LineCommentGutterIconRenderer.addGutterIcon(editor, comment, line);
                 });
             }
         }
     }
 
+    private void redrawEditors(@NotNull FileEditorManager source, @NotNull VirtualFile file, String relativePath) {
+        for (FileEditor fileEditor : source.getAllEditors(file)) {
+            if (fileEditor instanceof TextEditor) {
+                LineCommentGutterIconRenderer.redrawAllIconsForEditor(project, ((TextEditor) fileEditor).getEditor(), relativePath);
+            }
+        }
+    }
+
+    /**
+     * Offers to archive the comments whose lines were deleted while the file was open. The question is a
+     * notification rather than a dialog, so closing files never waits on it, and archiving runs in the
+     * background. Dismissing it leaves the comments deleted.
+     */
     @Override
     public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
         LineCommentService service = LineCommentService.getInstance(project);
         List<LineCommentEditorListener.DeletionCandidate> pendingDeletions = service.getAndClearPendingDeletedComments(file);
+        if (pendingDeletions.isEmpty()) {
+            return;
+        }
 
-        if (pendingDeletions != null && !pendingDeletions.isEmpty()) {
-            String message = String.format("%d adet silinmiş yorum bulundu. Bu yorumları arşivlemek ister misiniz?", pendingDeletions.size());
-            int result = Messages.showYesNoDialog(
-                    project,
-                    message,
-                    "Silinen Yorumlar",
-                    "Arşivle",
-                    "Kalıcı Olarak Sil",
-                    Messages.getQuestionIcon()
-            );
+        String relativePath = CommentPathUtil.getRelativePath(project, file);
+        Notification notification = NotificationGroupManager.getInstance()
+                .getNotificationGroup(NOTIFICATION_GROUP)
+                .createNotification("Silinen Yorumlar",
+                        String.format("%s dosyasında %d adet silinmiş yorum bulundu. Bu yorumları arşivlemek ister misiniz?",
+                                file.getName(), pendingDeletions.size()),
+                        NotificationType.INFORMATION);
+        notification.addAction(NotificationAction.createSimpleExpiring("Arşivle", () -> archive(relativePath, pendingDeletions)));
+        notification.addAction(NotificationAction.createSimpleExpiring("Kalıcı Olarak Sil", () -> {}));
+        notification.notify(project);
+    }
 
-            if (result == Messages.YES) { // Archive
-                CommentArchiveService archiveService = CommentArchiveService.getInstance(project);
-                for (LineCommentEditorListener.DeletionCandidate deleted : pendingDeletions) {
-                    ArchivedComment archivedComment = new ArchivedComment(
-                            CommentPathUtil.getRelativePath(project, file),
-                            deleted.comment().getLineNumber(),
-                            deleted.comment().getComment(),
-                            deleted.lineContent()
-                    );
-                    archiveService.archiveComment(archivedComment);
-                }
-            }
+    private void archive(String relativePath, List<LineCommentEditorListener.DeletionCandidate> pendingDeletions) {
+        List<ArchivedComment> archivedComments = new ArrayList<>(pendingDeletions.size());
+        for (LineCommentEditorListener.DeletionCandidate deleted : pendingDeletions) {
+            archivedComments.add(new ArchivedComment(
+                    relativePath,
+                    deleted.line(),
+                    deleted.comment().getComment(),
+                    deleted.lineContent()
+            ));
         }
+        new Task.Backgroundable(project, "Silinen yorumlar arşivleniyor", false) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                CommentArchiveService.getInstance(project).archiveAll(archivedComments);
+            }
+        }.queue();
     }
-} 
\ No newline at end of file
+}
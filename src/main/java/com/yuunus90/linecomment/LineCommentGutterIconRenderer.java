@@ -2,13 +2,16 @@ package com.yuunus90.linecomment;
 
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.markup.GutterIconRenderer;
 import com.intellij.openapi.editor.markup.HighlighterLayer;
+import com.intellij.openapi.editor.markup.MarkupModel;
 import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.IconLoader;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.wm.WindowManager;
 import org.jetbrains.annotations.NotNull;
@@ -17,13 +20,18 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
+import java.util.function.BiFunction;
 
 public class LineCommentGutterIconRenderer extends GutterIconRenderer {
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("dd MMM yyyy, HH:mm", new Locale("tr", "TR"));
+    private static final Key<Map<LineComment, RangeHighlighter>> HIGHLIGHTERS_KEY = Key.create("line.comment.gutter.highlighters");
     private final LineComment lineComment;
     private final Editor editor;
 
@@ -32,6 +40,10 @@ public class LineCommentGutterIconRenderer extends GutterIconRenderer {
         this.editor = editor;
     }
 
+    LineComment getLineComment() {
+        return lineComment;
+    }
+
     @Override
     public @NotNull Icon getIcon() {
         return IconLoader.getIcon("/icons/comment.svg", LineCommentGutterIconRenderer.class);
@@ -104,8 +116,11 @@ public class LineCommentGutterIconRenderer extends GutterIconRenderer {
                         if (file != null) {
                             String relativePath = CommentPathUtil.getRelativePath(project, file);
                             LineCommentService service = LineCommentService.getInstance(project);
-                            service.removeComment(relativePath, lineComment.getLineNumber());
-                            redrawAllIconsForEditor(project, editor, relativePath);
+                            CommentAnchorService anchorService = CommentAnchorService.getInstance(project);
+                            anchorService.sync(editor.getDocument());
+                            // By identity: the comment may have moved since its icon was drawn.
+                            service.removeComment(relativePath, lineComment);
+                            anchorService.sync(editor.getDocument());
                         }
                         dialog.dispose();
                     }
@@ -123,44 +138,87 @@ public class LineCommentGutterIconRenderer extends GutterIconRenderer {
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
         LineCommentGutterIconRenderer that = (LineCommentGutterIconRenderer) obj;
-        return lineComment.getLineNumber() == that.lineComment.getLineNumber() &&
-               Objects.equals(lineComment.getComment(), that.lineComment.getComment());
+        return lineComment == that.lineComment;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(lineComment.getComment(), lineComment.getLineNumber());
+        return System.identityHashCode(lineComment);
+    }
+
+    public static void addGutterIcon(Editor editor, LineComment comment, int line) {
+        Map<LineComment, RangeHighlighter> registry = getRegistry(editor);
+        RangeHighlighter existing = registry.remove(comment);
+        if (existing != null) {
+            editor.getMarkupModel().removeHighlighter(existing);
+        }
+        registry.put(comment, createHighlighter(editor, comment, line));
     }
 
-    public static void addGutterIcon(Editor editor, LineComment comment) {
+    private static RangeHighlighter createHighlighter(Editor editor, LineComment comment, int line) {
         LineCommentGutterIconRenderer renderer = new LineCommentGutterIconRenderer(comment, editor);
-        final RangeHighlighter highlighter = editor.getMarkupModel().addLineHighlighter(comment.getLineNumber(), HighlighterLayer.ERROR, null);
+        final RangeHighlighter highlighter = editor.getMarkupModel().addLineHighlighter(line, HighlighterLayer.ERROR, null);
         highlighter.setGutterIconRenderer(renderer);
+        return highlighter;
     }
 
-    private static boolean hasGutterIcon(Editor editor, int lineNumber) {
-        for (var highlighter : editor.getMarkupModel().getAllHighlighters()) {
-            if (highlighter.getGutterIconRenderer() instanceof LineCommentGutterIconRenderer) {
-                LineCommentGutterIconRenderer renderer = (LineCommentGutterIconRenderer) highlighter.getGutterIconRenderer();
-                if (renderer.lineComment.getLineNumber() == lineNumber) {
-                    return true;
-                }
-            }
+    private static Map<LineComment, RangeHighlighter> getRegistry(Editor editor) {
+        Map<LineComment, RangeHighlighter> registry = editor.getUserData(HIGHLIGHTERS_KEY);
+        if (registry == null) {
+            registry = new IdentityHashMap<>();
+            editor.putUserData(HIGHLIGHTERS_KEY, registry);
         }
-        return false;
+        return registry;
     }
 
+    /**
+     * Reconciles the editor's comment icons with the file's comments. Only highlighters of comments that
+     * were removed, added or moved to another line are touched; other highlighters on the markup model
+     * are left alone.
+     */
     public static void redrawAllIconsForEditor(Project project, Editor editor, String filePath) {
-        editor.getMarkupModel().removeAllHighlighters();
-
+        LineCommentMetrics metrics = LineCommentMetrics.getInstance(project);
+        long start = metrics.start();
         LineCommentService service = LineCommentService.getInstance(project);
-        Map<Integer, LineComment> comments = service.getCommentsForFile(filePath);
-        if (comments != null) {
-            comments.forEach((line, comment) -> {
-                if (!hasGutterIcon(editor, line)) {
-                    addGutterIcon(editor, comment);
-                }
-            });
+        reconcile(service.getCommentsForFile(filePath), getRegistry(editor), editor.getDocument(), editor.getMarkupModel(),
+                (comment, line) -> createHighlighter(editor, comment, line));
+        metrics.record(LineCommentMetrics.Timer.REDRAW, start);
+    }
+
+    static void reconcile(Map<Integer, LineComment> comments, Map<LineComment, RangeHighlighter> registry, Document document,
+                          MarkupModel markupModel, BiFunction<LineComment, Integer, RangeHighlighter> highlighterFactory) {
+        int lineCount = document.getLineCount();
+
+        Map<LineComment, Integer> wanted = new IdentityHashMap<>();
+        comments.forEach((line, comment) -> {
+            if (line >= 0 && line < Math.max(lineCount, 1)) {
+                wanted.put(comment, line);
+            }
+        });
+
+        // Work out the whole diff first, then apply it to the markup model in one pass.
+        List<RangeHighlighter> toRemove = new ArrayList<>();
+        List<LineComment> toAdd = new ArrayList<>();
+        for (Iterator<Map.Entry<LineComment, RangeHighlighter>> it = registry.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<LineComment, RangeHighlighter> entry = it.next();
+            RangeHighlighter highlighter = entry.getValue();
+            Integer line = wanted.get(entry.getKey());
+            if (line == null || !highlighter.isValid() || document.getLineNumber(highlighter.getStartOffset()) != line) {
+                toRemove.add(highlighter);
+                it.remove();
+            }
+        }
+        wanted.forEach((comment, line) -> {
+            if (!registry.containsKey(comment)) {
+                toAdd.add(comment);
+            }
+        });
+
+        for (RangeHighlighter highlighter : toRemove) {
+            markupModel.removeHighlighter(highlighter);
+        }
+        for (LineComment comment : toAdd) {
+            registry.put(comment, highlighterFactory.apply(comment, wanted.get(comment)));
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the gutter icons of open editors in step with the comments. Every change announced on
+ * {@link LineCommentListener#TOPIC} anchors the comments of the changed files' open documents, so edits
+ * carry new comments along, and reconciles their editors' icons. Changes arrive on any thread and are
+ * collected into one pass on the EDT.
+ */
+public final class LineCommentGutterUpdater implements LineCommentListener {
+
+    private final Project project;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public LineCommentGutterUpdater(@NotNull Project project) {
+        this.project = project;
+    }
+
+    @Override
+    public void commentsChanged(@NotNull Collection<String> filePaths) {
+        pending.addAll(filePaths);
+        if (scheduled.compareAndSet(false, true)) {
+            ApplicationManager.getApplication().invokeLater(this::update, project.getDisposed());
+        }
+    }
+
+    // On the EDT
+    private void update() {
+        // Cleared before draining, so changes announced from here on schedule another pass.
+        scheduled.set(false);
+        List<String> filePaths = new ArrayList<>(pending);
+        pending.removeAll(filePaths);
+        Set<String> changed = new HashSet<>(filePaths);
+        CommentAnchorService anchors = CommentAnchorService.getInstance(project);
+        FileDocumentManager documentManager = FileDocumentManager.getInstance();
+        Set<Document> synced = new HashSet<>();
+        for (Editor editor : EditorFactory.getInstance().getAllEditors()) {
+            VirtualFile file = documentManager.getFile(editor.getDocument());
+            if (editor.getProject() != project || editor.isDisposed() || file == null) {
+                continue;
+            }
+            String filePath = CommentPathUtil.getRelativePath(project, file);
+            if (!changed.contains(filePath)) {
+                continue;
+            }
+            if (synced.add(editor.getDocument())) {
+                anchors.sync(editor.getDocument());
+            }
+            LineCommentGutterIconRenderer.redrawAllIconsForEditor(project, editor, filePath);
+        }
+    }
+}
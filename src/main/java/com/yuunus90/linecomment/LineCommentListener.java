@@ -0,0 +1,23 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.util.messages.Topic;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Project-level notifications about line comment changes. Published synchronously on the thread that
+ * made the change, which is not necessarily the EDT.
+ */
+public interface LineCommentListener {
+    Topic<LineCommentListener> TOPIC = Topic.create("Line comments changed", LineCommentListener.class);
+
+    /**
+     * Comments of the given project-relative files were added, edited, removed or moved.
+     */
+    default void commentsChanged(@NotNull Collection<String> filePaths) {
+    }
+
+    default void commentsArchived(@NotNull Collection<ArchivedComment> comments) {
+    }
+}
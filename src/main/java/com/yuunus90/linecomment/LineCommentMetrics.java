@@ -0,0 +1,199 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.registry.RegistryValue;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and counters of the comment engine, collected only while
+ * {@value #ENABLED_KEY} is on. When it is off, {@link #start()} returns 0 and every recording call
+ * returns after reading the cached registry value, so call sites never need to check first.
+ * <pre>
+ * long start = metrics.start();
+ * ... timed work ...
+ * metrics.record(LineCommentMetrics.Timer.SAVE, start);
+ * </pre>
+ */
+@Service(Service.Level.PROJECT)
+public final class LineCommentMetrics {
+
+    static final String ENABLED_KEY = "linecomment.metrics.enabled";
+
+    public enum Timer {
+        LOAD("loadComments"),
+        SAVE("saveComments"),
+        ANCHOR_EDIT("anchor edit"),
+        ANCHOR_SYNC("syncAnchors"),
+        REDRAW("redrawAllIconsForEditor"),
+        RECONCILE("reconcile changed files"),
+        ARCHIVE_WRITE("archive write");
+
+        private final String label;
+
+        Timer(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Counter {
+        JOURNAL_APPENDS("journal appends"),
+        COMPACTIONS("compactions"),
+        SHARDS_WRITTEN("shards written"),
+        ARCHIVE_BYTES("archive bytes written"),
+        ARCHIVE_FLUSHES("archive flushes");
+
+        private final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    private final RegistryValue enabled = Registry.get(ENABLED_KEY);
+    private final Map<Timer, Histogram> timers = new EnumMap<>(Timer.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private final Histogram commentsPerFile = new Histogram();
+
+    public LineCommentMetrics() {
+        for (Timer timer : Timer.values()) {
+            timers.put(timer, new Histogram());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    public static LineCommentMetrics getInstance(@NotNull Project project) {
+        return project.getService(LineCommentMetrics.class);
+    }
+
+    public boolean isEnabled() {
+        return enabled.asBoolean();
+    }
+
+    /**
+     * Returns the start time to pass to {@link #record}, or 0 when metrics are off.
+     */
+    public long start() {
+        return enabled.asBoolean() ? System.nanoTime() : 0;
+    }
+
+    public void record(@NotNull Timer timer, long start) {
+        if (start != 0) {
+            timers.get(timer).add(System.nanoTime() - start);
+        }
+    }
+
+    public void count(@NotNull Counter counter, long delta) {
+        if (enabled.asBoolean()) {
+            counters.get(counter).add(delta);
+        }
+    }
+
+    /**
+     * Records the number of comments in a file as it is written.
+     */
+    public void recordCommentsPerFile(int comments) {
+        if (enabled.asBoolean()) {
+            commentsPerFile.add(comments);
+        }
+    }
+
+    public void reset() {
+        timers.values().forEach(Histogram::reset);
+        counters.values().forEach(LongAdder::reset);
+        commentsPerFile.reset();
+    }
+
+    /**
+     * Renders every histogram and counter as plain text, one per line.
+     */
+    @NotNull
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Line comment metrics").append(enabled.asBoolean() ? "" : " (collection disabled, see " + ENABLED_KEY + ")").append('\n');
+        builder.append(String.format(Locale.ROOT, "%-26s %8s %10s %10s %10s %10s %10s%n", "timer (ms)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Timer timer : Timer.values()) {
+            Histogram histogram = timers.get(timer);
+            builder.append(String.format(Locale.ROOT, "%-26s %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n", timer.label, histogram.count(),
+                    histogram.mean() / 1e6, histogram.percentile(0.5) / 1e6, histogram.percentile(0.9) / 1e6,
+                    histogram.percentile(0.99) / 1e6, histogram.max() / 1e6));
+        }
+        builder.append(String.format(Locale.ROOT, "%-26s %8d %10.1f %10d %10d %10d %10d%n", "comments per file", commentsPerFile.count(),
+                commentsPerFile.mean(), commentsPerFile.percentile(0.5), commentsPerFile.percentile(0.9),
+                commentsPerFile.percentile(0.99), commentsPerFile.max()));
+        for (Counter counter : Counter.values()) {
+            builder.append(String.format(Locale.ROOT, "%-26s %8d%n", counter.label, counters.get(counter).sum()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Lock-free histogram with power-of-two buckets. Percentiles are reported as the upper bound of the
+     * bucket they fall in, so they are accurate to within a factor of two.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void add(long value) {
+            long clamped = Math.max(value, 0);
+            // Bucket i holds values in [2^(i-1), 2^i - 1]; bucket 0 holds only 0.
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(clamped));
+            count.increment();
+            sum.add(clamped);
+            max.accumulate(clamped);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double quantile) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min((1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.components.JBTextArea;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Diagnostics view of {@link LineCommentMetrics}, refreshed every two seconds while it is showing.
+ */
+public class LineCommentMetricsToolWindowFactory implements ToolWindowFactory, DumbAware {
+    private static final int REFRESH_MILLIS = 2000;
+
+    @Override
+    public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+        LineCommentMetrics metrics = LineCommentMetrics.getInstance(project);
+        JBTextArea text = new JBTextArea();
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, text.getFont().getSize()));
+
+        Runnable refresh = () -> text.setText(metrics.dump());
+        JButton refreshButton = new JButton("Yenile");
+        refreshButton.addActionListener(e -> refresh.run());
+        JButton resetButton = new JButton("Sıfırla");
+        resetButton.addActionListener(e -> {
+            metrics.reset();
+            refresh.run();
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttons.add(refreshButton);
+        buttons.add(resetButton);
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(buttons, BorderLayout.NORTH);
+        panel.add(new JBScrollPane(text), BorderLayout.CENTER);
+        refresh.run();
+
+        Timer timer = new Timer(REFRESH_MILLIS, e -> {
+            if (panel.isShowing()) {
+                refresh.run();
+            }
+        });
+        timer.start();
+
+        Content content = ContentFactory.getInstance().createContent(panel, null, false);
+        Disposer.register(content, timer::stop);
+        toolWindow.getContentManager().addContent(content);
+    }
+}
@@ -2,34 +2,81 @@ package com.yuunus90.linecomment;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.containers.Interner;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 @Service(Service.Level.PROJECT)
-public final class LineCommentService {
+public final class LineCommentService implements Disposable {
 
     private static final Logger LOG = Logger.getInstance(LineCommentService.class);
 
     private final Project project;
-    private final Path notesFilePath;
-    private final Map<VirtualFile, List<LineCommentEditorListener.DeletionCandidate>> pendingDeletions = new ConcurrentHashMap<>();
-    private final Map<String, Map<Integer, LineComment>> comments = new ConcurrentHashMap<>();
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private final Path legacyNotesFilePath;
+    private final PendingDeletions pendingDeletions = new PendingDeletions();
+    private final CommentPathTable paths;
+    private final LineCommentMetrics metrics;
+    // Immutable per-file snapshots keyed by path id, so a rename only changes the path behind the id.
+    // Swapped under stateLock, read without it.
+    private final Map<Integer, LineIndex> comments = new ConcurrentHashMap<>();
+    // Snapshot each shard was last written or read from, the base for merging changes made on disk
+    private final Map<Integer, LineIndex> savedSnapshots = new ConcurrentHashMap<>();
+    // Comment and anchor texts shared between comments, as many notes repeat the same few words. Only
+    // short texts are pooled: long ones are rarely repeated, and a unique text costs a pool entry on top.
+    private static final int POOLED_TEXT_MAX_LENGTH = 32;
+    private final Interner<String> texts = Interner.createWeakInterner();
+    private final Set<Integer> loadedPaths = ConcurrentHashMap.newKeySet();
+    private final Object stateLock = new Object();
+    // Journal records of files whose shard has not been loaded yet, guarded by stateLock
+    private final Map<String, List<CommentJournal.Record>> journalBacklog = new HashMap<>();
+    // Files that lost comments or were renamed away since the last compaction, guarded by stateLock
+    private final Set<String> removedFrom = new HashSet<>();
+    private final NotesShardStore shardStore;
+    private final CommentJournal journal;
+    private final NotesWriteBehind writeBehind = new NotesWriteBehind(this::persist);
+    private volatile boolean compactionRequired;
+    private volatile boolean allLoaded;
+    private final CompletableFuture<Void> loadedFuture = new CompletableFuture<>();
+    // The batch running on this thread, if any
+    private final ThreadLocal<Batch> batch = new ThreadLocal<>();
+    // Mutations requested before loading finished, replayed in order once it has, guarded by stateLock
+    private final List<Runnable> deferredMutations = new ArrayList<>();
+    // The loader thread while it replays deferred mutations, which it applies directly; guarded by stateLock
+    private Thread replayThread;
+    private volatile boolean loaded;
+    // Set once the deferred mutations have been replayed; until then new ones queue up behind them
+    private volatile boolean mutationsApplied;
 
     public static LineCommentService getInstance(@NotNull Project project) {
         return project.getService(LineCommentService.class);
@@ -37,125 +84,1020 @@ public final class LineCommentService {
 
     public LineCommentService(Project project) {
         this.project = project;
-        this.notesFilePath = Paths.get(project.getBasePath(), ".notes", "notes.json");
-        loadComments();
+        this.paths = CommentPathTable.getInstance(project);
+        this.metrics = LineCommentMetrics.getInstance(project);
+        Path notesDirectory = Paths.get(project.getBasePath(), ".notes");
+        this.legacyNotesFilePath = notesDirectory.resolve("notes.json");
+        this.shardStore = new NotesShardStore(notesDirectory);
+        this.journal = new CommentJournal(notesDirectory.resolve("notes.journal"));
+        AppExecutorUtil.getAppExecutorService().execute(this::load);
     }
 
+    private void load() {
+        long start = metrics.start();
+        try {
+            loadComments();
+        } catch (RuntimeException e) {
+            LOG.warn("Could not load line comments", e);
+        }
+        metrics.record(LineCommentMetrics.Timer.LOAD, start);
+        synchronized (stateLock) {
+            loaded = true;
+            replayThread = Thread.currentThread();
+        }
+        while (true) {
+            List<Runnable> deferred;
+            synchronized (stateLock) {
+                if (deferredMutations.isEmpty()) {
+                    replayThread = null;
+                    mutationsApplied = true;
+                    break;
+                }
+                deferred = new ArrayList<>(deferredMutations);
+                deferredMutations.clear();
+            }
+            // Without stateLock, as each mutation notifies listeners, which must not run under it.
+            deferred.forEach(Runnable::run);
+        }
+        loadedFuture.complete(null);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Completes once the notes have been read in the background. Until then reads see no comments and
+     * mutations are queued.
+     */
+    public CompletableFuture<Void> whenLoaded() {
+        return loadedFuture;
+    }
+
+    /**
+     * Runs the callback on the EDT once loading has finished, or right away if it already has.
+     */
+    public void runWhenLoaded(@NotNull Runnable callback) {
+        loadedFuture.thenRun(() -> ApplicationManager.getApplication().invokeLater(callback, project.getDisposed()));
+    }
+
+    private boolean deferUntilLoaded(Runnable mutation) {
+        if (mutationsApplied) {
+            return false;
+        }
+        synchronized (stateLock) {
+            if (mutationsApplied || replayThread == Thread.currentThread()) {
+                return false;
+            }
+            deferredMutations.add(mutation);
+            return true;
+        }
+    }
+
+    /**
+     * Runs on a pooled thread and only reads the journal; shards are loaded lazily the first time their
+     * file is asked for.
+     */
     private void loadComments() {
-        if (Files.exists(notesFilePath)) {
+        // Keyed on the legacy file rather than the shards directory, so an interrupted migration is retried.
+        if (Files.exists(legacyNotesFilePath)) {
             try {
-                String json = Files.readString(notesFilePath);
-                Type type = new TypeToken<ConcurrentHashMap<String, Map<Integer, LineComment>>>() {}.getType();
-                Map<String, Map<Integer, LineComment>> loadedComments = gson.fromJson(json, type);
-                if (loadedComments != null) {
-                    comments.clear();
-                    comments.putAll(loadedComments);
-                }
+                shardStore.migrateLegacy(legacyNotesFilePath, 0);
+                LOG.info("Migrated " + legacyNotesFilePath + " to per-file line comment shards");
             } catch (IOException e) {
-                LOG.warn("Could not load line comments from " + notesFilePath, e);
+                LOG.warn("Could not migrate line comments from " + legacyNotesFilePath, e);
+            }
+        }
+        journal.replay(record -> {
+            journalBacklog.computeIfAbsent(record.path, k -> new ArrayList<>()).add(record);
+            if (record.target != null) {
+                journalBacklog.computeIfAbsent(record.target, k -> new ArrayList<>()).add(record);
+            }
+        });
+        // Fold the replayed records into the shards before appending anything on top of them, so a shard
+        // left at a newer generation by an interrupted compaction never hides records appended later.
+        compactionRequired = !journalBacklog.isEmpty();
+    }
+
+    private void ensureLoaded(String filePath) {
+        if (!loaded || loadedPaths.contains(paths.idOf(filePath))) {
+            return;
+        }
+        synchronized (stateLock) {
+            if (!loadedPaths.contains(paths.idOf(filePath))) {
+                loadShard(filePath, shardStore.read(filePath));
+            }
+        }
+    }
+
+    private void ensureAllLoaded() {
+        if (!loaded || allLoaded) {
+            return;
+        }
+        synchronized (stateLock) {
+            if (allLoaded) {
+                return;
+            }
+            shardStore.forEach(shard -> {
+                if (!loadedPaths.contains(paths.idOf(shard.path))) {
+                    loadShard(shard.path, shard);
+                }
+            });
+            for (String filePath : new ArrayList<>(journalBacklog.keySet())) {
+                loadShard(filePath, null);
+            }
+            allLoaded = true;
+        }
+    }
+
+    // Called with stateLock held. Loading is not part of a batch that happens to be running, so the
+    // replayed backlog goes straight to the live snapshot.
+    private void loadShard(String filePath, @Nullable NotesShard shard) {
+        Batch running = batch.get();
+        batch.remove();
+        try {
+            doLoadShard(filePath, shard);
+        } finally {
+            if (running != null) {
+                batch.set(running);
             }
         }
     }
 
+    private void doLoadShard(String filePath, @Nullable NotesShard shard) {
+        int id = paths.idOf(filePath);
+        long shardGeneration = -1;
+        if (shard != null && shard.comments != null && !shard.comments.isEmpty()) {
+            String sharedPath = paths.pathOf(id);
+            shard.comments.forEach((line, comment) -> comment.share(sharedPath, line, this::pool));
+            LineIndex fileComments = LineIndex.fromMap(shard.comments);
+            comments.put(id, fileComments);
+            savedSnapshots.put(id, fileComments);
+            shardGeneration = shard.generation;
+        }
+        List<CommentJournal.Record> backlog = journalBacklog.remove(filePath);
+        if (backlog != null && shardGeneration <= journal.generation()) {
+            backlog.forEach(record -> apply(record, filePath));
+        }
+        loadedPaths.add(id);
+    }
+
+    /**
+     * Runs on the write-behind thread: appends the queued changes to the journal and folds the journal
+     * into the shards once it has grown past the compaction threshold.
+     */
+    private void persist() {
+        if (!loaded) {
+            return;
+        }
+        try {
+            if (!compactionRequired) {
+                journal.append(journal.drain());
+                metrics.count(LineCommentMetrics.Counter.JOURNAL_APPENDS, 1);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not append to line comment journal, falling back to a full save", e);
+            compactionRequired = true;
+        }
+        if (compactionRequired || journal.exceedsCompactionThreshold()) {
+            saveComments();
+        }
+    }
+
+    /**
+     * Rewrites only the shards of files whose snapshot changed or that lost comments, then starts a new
+     * journal generation on top of them. The lock is held only to pick the snapshots; they are immutable,
+     * so serializing and writing them runs alongside new edits.
+     */
     private void saveComments() {
+        long start = metrics.start();
+        Map<String, LineIndex> dirtyShards = new HashMap<>();
+        long generation;
+        synchronized (stateLock) {
+            for (String filePath : new ArrayList<>(journalBacklog.keySet())) {
+                loadShard(filePath, shardStore.read(filePath));
+            }
+            // Everything still queued is already part of the snapshots picked here.
+            journal.drain();
+            generation = journal.generation() + 1;
+
+            Set<String> candidates = new HashSet<>(removedFrom);
+            comments.forEach((id, fileComments) -> {
+                if (fileComments != savedSnapshots.get(id)) {
+                    candidates.add(paths.pathOf(id));
+                }
+            });
+            for (String filePath : candidates) {
+                dirtyShards.put(filePath, indexOf(filePath));
+            }
+            removedFrom.clear();
+        }
         try {
-            Files.createDirectories(notesFilePath.getParent());
-            String json = gson.toJson(comments);
-            Files.writeString(notesFilePath, json);
+            for (Map.Entry<String, LineIndex> entry : dirtyShards.entrySet()) {
+                LineIndex fileComments = entry.getValue();
+                if (fileComments == null || fileComments.isEmpty()) {
+                    shardStore.write(entry.getKey(), null);
+                    savedSnapshots.remove(paths.idOf(entry.getKey()));
+                } else {
+                    Map<Integer, LineComment> shardComments = fileComments.toMap();
+                    shardStore.write(entry.getKey(), shardStore.serialize(new NotesShard(generation, entry.getKey(), shardComments)));
+                    metrics.recordCommentsPerFile(shardComments.size());
+                    savedSnapshots.put(paths.idOf(entry.getKey()), fileComments);
+                }
+            }
+            journal.reset(generation);
+            compactionRequired = false;
+            metrics.count(LineCommentMetrics.Counter.COMPACTIONS, 1);
+            metrics.count(LineCommentMetrics.Counter.SHARDS_WRITTEN, dirtyShards.size());
         } catch (IOException e) {
-            LOG.warn("Could not save line comments to " + notesFilePath, e);
+            LOG.warn("Could not save line comment shards", e);
+            synchronized (stateLock) {
+                removedFrom.addAll(dirtyShards.keySet());
+            }
+            compactionRequired = true;
         }
+        metrics.record(LineCommentMetrics.Timer.SAVE, start);
+    }
+
+    /**
+     * Syncs the line anchors of open documents and writes any changes still waiting in the write-behind
+     * queue to disk before returning.
+     */
+    public void flush() {
+        CommentAnchorService.getInstance(project).syncAll();
+        writeBehind.flush();
+    }
+
+    /**
+     * Reads shard files reported changed on disk, skipping our own writes. Returns the comments on disk
+     * of each file whose shard someone else changed, or {@code null} for a file whose shard was deleted.
+     * Does the file IO, so call off the EDT.
+     */
+    Map<String, NotesShard> readExternalShards(@NotNull Collection<Path> shardFiles) {
+        Map<String, NotesShard> changed = new HashMap<>();
+        for (Path shardFile : shardFiles) {
+            NotesShardStore.ExternalChange change = shardStore.readExternalChange(shardFile);
+            if (change != null) {
+                changed.put(change.filePath(), change.shard());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Takes in shards changed on disk by another IDE instance or a pull, one file at a time. Files not
+     * loaded yet are left alone, they are read from disk when first asked for. Each file is merged three
+     * ways against the shard as this instance last read or wrote it: lines changed only on disk take the
+     * disk's comment, lines changed only here keep ours, and where both changed ours wins. Returns the
+     * files whose comments changed, all of them published to listeners in one batch.
+     */
+    Set<String> mergeExternalShards(@NotNull Map<String, NotesShard> shards) {
+        Set<String> merged = new LinkedHashSet<>();
+        runBatch(() -> {
+            // Starts over when the batch runs again
+            merged.clear();
+            shards.forEach((filePath, shard) -> {
+                int id = paths.findId(filePath);
+                if (id < 0 || !loadedPaths.contains(id)) {
+                    return;
+                }
+                String sharedPath = paths.pathOf(id);
+                Map<Integer, LineComment> onDisk = new HashMap<>();
+                if (shard != null && shard.comments != null) {
+                    shard.comments.forEach((line, comment) -> {
+                        comment.share(sharedPath, line, this::pool);
+                        onDisk.put(line, comment);
+                    });
+                }
+                LineIndex base = savedSnapshots.get(id);
+                LineIndex fileComments = current(id);
+                Map<Integer, LineComment> local = fileComments != null ? fileComments.toMap() : Map.of();
+                Map<Integer, LineComment> result = mergeThreeWay(base != null ? base.toMap() : Map.of(), local, onDisk);
+                if (!sameComments(result, local)) {
+                    doReplaceComments(filePath, result);
+                    record(CommentJournal.Record.replace(filePath, result));
+                    merged.add(filePath);
+                    changed(List.of(filePath));
+                }
+                rebase(filePath, id, onDisk);
+            });
+        });
+        return merged;
+    }
+
+    private static Map<Integer, LineComment> mergeThreeWay(Map<Integer, LineComment> base, Map<Integer, LineComment> local,
+                                                           Map<Integer, LineComment> onDisk) {
+        Map<Integer, LineComment> result = new HashMap<>(local);
+        Set<Integer> lines = new HashSet<>(base.keySet());
+        lines.addAll(onDisk.keySet());
+        for (int line : lines) {
+            LineComment ours = local.get(line);
+            LineComment theirs = onDisk.get(line);
+            LineComment original = base.get(line);
+            if (sameComment(ours, original) && !sameComment(theirs, original)) {
+                if (theirs != null) {
+                    result.put(line, theirs);
+                } else {
+                    result.remove(line);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Makes what the shard holds now the base of the next merge, once the batch is published. If the
+     * file's comments are the same, the next compaction need not write it back.
+     */
+    private void rebase(String filePath, int id, Map<Integer, LineComment> onDisk) {
+        LineIndex current = current(id);
+        boolean unchanged = sameComments(current != null ? current.toMap() : Map.of(), onDisk);
+        LineIndex base = unchanged ? current : onDisk.isEmpty() ? null : LineIndex.fromMap(onDisk);
+        afterCommit(() -> {
+            if (base != null) {
+                savedSnapshots.put(id, base);
+            } else {
+                savedSnapshots.remove(id);
+            }
+            if (unchanged) {
+                removedFrom.remove(filePath);
+            }
+        });
+    }
+
+    private static boolean sameComments(Map<Integer, LineComment> left, Map<Integer, LineComment> right) {
+        if (left.size() != right.size()) {
+            return false;
+        }
+        for (Map.Entry<Integer, LineComment> entry : left.entrySet()) {
+            if (!sameComment(entry.getValue(), right.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameComment(@Nullable LineComment left, @Nullable LineComment right) {
+        if (left == null || right == null) {
+            return left == right;
+        }
+        return Objects.equals(left.getComment(), right.getComment()) && left.getCreationTimestamp() == right.getCreationTimestamp();
+    }
+
+    @Override
+    public void dispose() {
+        writeBehind.close();
     }
 
     public void addComment(String filePath, int lineNumber, String comment) {
-        Map<Integer, LineComment> fileComments = comments.computeIfAbsent(filePath, k -> new ConcurrentHashMap<>());
-        fileComments.put(lineNumber, new LineComment(filePath, lineNumber, comment));
-        saveComments();
+        if (deferUntilLoaded(() -> addComment(filePath, lineNumber, comment))) {
+            return;
+        }
+        ensureLoaded(filePath);
+        synchronized (stateLock) {
+            LineComment lineComment = newComment(filePath, lineNumber, comment, System.currentTimeMillis());
+            putComment(lineComment);
+            record(CommentJournal.Record.add(lineComment));
+        }
+        changed(List.of(filePath));
     }
 
     public void removeComment(String filePath, int lineNumber) {
-        Map<Integer, LineComment> fileComments = comments.get(filePath);
-        if (fileComments != null) {
-            fileComments.remove(lineNumber);
-            if (fileComments.isEmpty()) {
-                comments.remove(filePath);
+        if (deferUntilLoaded(() -> removeComment(filePath, lineNumber))) {
+            return;
+        }
+        ensureLoaded(filePath);
+        synchronized (stateLock) {
+            if (!doRemoveComment(filePath, lineNumber)) {
+                return;
             }
-            saveComments();
+            record(CommentJournal.Record.remove(filePath, lineNumber));
         }
+        changed(List.of(filePath));
     }
 
     public void updateComment(String filePath, int lineNumber, String newComment) {
-        Map<Integer, LineComment> fileComments = comments.get(filePath);
-        if (fileComments != null && fileComments.containsKey(lineNumber)) {
-            fileComments.get(lineNumber).setComment(newComment);
-            saveComments();
+        if (deferUntilLoaded(() -> updateComment(filePath, lineNumber, newComment))) {
+            return;
+        }
+        ensureLoaded(filePath);
+        synchronized (stateLock) {
+            if (!doUpdateComment(filePath, lineNumber, newComment)) {
+                return;
+            }
+            record(CommentJournal.Record.update(filePath, lineNumber, newComment));
+        }
+        changed(List.of(filePath));
+    }
+
+    /**
+     * Removes this very comment wherever it has moved to. For callers holding on to a comment, whose
+     * creation line may be out of date.
+     */
+    public void removeComment(String filePath, LineComment comment) {
+        if (deferUntilLoaded(() -> removeComment(filePath, comment))) {
+            return;
+        }
+        ensureLoaded(filePath);
+        synchronized (stateLock) {
+            LineIndex fileComments = indexOf(filePath);
+            int line = fileComments != null ? fileComments.lineOf(comment) : -1;
+            if (line < 0 || !doRemoveComment(filePath, line)) {
+                return;
+            }
+            record(CommentJournal.Record.remove(filePath, line));
         }
+        changed(List.of(filePath));
     }
 
     public boolean hasComment(String filePath, int lineNumber) {
-        Map<Integer, LineComment> fileComments = comments.get(filePath);
-        return fileComments != null && fileComments.containsKey(lineNumber);
+        ensureLoaded(filePath);
+        LineIndex fileComments = indexOf(filePath);
+        return fileComments != null && fileComments.contains(lineNumber);
     }
 
     public LineComment getComment(String filePath, int lineNumber) {
-        Map<Integer, LineComment> fileComments = comments.get(filePath);
+        ensureLoaded(filePath);
+        LineIndex fileComments = indexOf(filePath);
         return (fileComments != null) ? fileComments.get(lineNumber) : null;
     }
 
     public Map<Integer, LineComment> getCommentsForFile(String filePath) {
-        return comments.getOrDefault(filePath, new HashMap<>());
+        ensureLoaded(filePath);
+        LineIndex fileComments = indexOf(filePath);
+        return fileComments != null ? fileComments.toMap() : new HashMap<>();
+    }
+
+    /**
+     * Returns the paths of all files that have comments, sorted. Loads every shard on the first call, so
+     * call it off the EDT until {@link #isAllLoaded()}.
+     */
+    public List<String> getCommentedFiles() {
+        ensureAllLoaded();
+        List<String> files = new ArrayList<>(comments.size());
+        forEachFile((id, fileComments) -> {
+            if (!fileComments.isEmpty()) {
+                files.add(paths.pathOf(id));
+            }
+        });
+        files.sort(null);
+        return files;
+    }
+
+    public boolean isAllLoaded() {
+        return allLoaded;
+    }
+
+    public int getCommentCount(String filePath) {
+        ensureLoaded(filePath);
+        LineIndex fileComments = indexOf(filePath);
+        return fileComments != null ? fileComments.size() : 0;
+    }
+
+    /**
+     * Whether the file may have comments, answered from memory or the presence of its shard without
+     * loading it. Cheap enough to filter thousands of changed files with.
+     */
+    public boolean mayHaveComments(String filePath) {
+        int id = paths.findId(filePath);
+        if (id >= 0 && loadedPaths.contains(id)) {
+            LineIndex fileComments = current(id);
+            return fileComments != null && !fileComments.isEmpty();
+        }
+        synchronized (stateLock) {
+            if (journalBacklog.containsKey(filePath)) {
+                return true;
+            }
+        }
+        return shardStore.contains(filePath);
+    }
+
+    /**
+     * Returns one page of the file's comments in line order, from position {@code from} (inclusive) to
+     * {@code to} (exclusive), without copying the rest.
+     */
+    public List<Map.Entry<Integer, LineComment>> getComments(String filePath, int from, int to) {
+        ensureLoaded(filePath);
+        LineIndex fileComments = indexOf(filePath);
+        return fileComments != null ? fileComments.slice(from, to) : List.of();
     }
 
     public Map<String, Map<Integer, LineComment>> getAllCommentsByFile() {
-        return new HashMap<>(comments);
+        ensureAllLoaded();
+        Map<String, Map<Integer, LineComment>> result = new HashMap<>();
+        forEachFile((id, fileComments) -> result.put(paths.pathOf(id), fileComments.toMap()));
+        return result;
+    }
+
+    /**
+     * Writes every comment to a single pretty-printed JSON file, sorted by file and line so that two
+     * exports diff cleanly, whichever storage format the shards use.
+     */
+    public void exportJson(@NotNull Path target) throws IOException {
+        flush();
+        Map<String, Map<Integer, LineComment>> sorted = new TreeMap<>();
+        getAllCommentsByFile().forEach((filePath, fileComments) -> sorted.put(filePath, new TreeMap<>(fileComments)));
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        NotesFileUtil.writeAtomically(target, gson.toJson(sorted));
+    }
+
+    /**
+     * Replaces all comments with those of a file written by {@link #exportJson}. Files missing from it
+     * lose their comments.
+     */
+    public void importJson(@NotNull Path source) throws IOException {
+        Map<String, Map<Integer, LineComment>> imported;
+        try (Reader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            Type type = new TypeToken<Map<String, Map<Integer, LineComment>>>() {}.getType();
+            imported = new Gson().fromJson(reader, type);
+        } catch (JsonParseException e) {
+            throw new IOException("Malformed line comment export " + source, e);
+        }
+        if (imported == null) {
+            throw new IOException("Empty line comment export " + source);
+        }
+        runBatch(() -> {
+            for (String filePath : getAllCommentsByFile().keySet()) {
+                if (!imported.containsKey(filePath)) {
+                    removeCommentsInFile(filePath);
+                }
+            }
+            imported.forEach((filePath, fileComments) -> {
+                Map<Integer, LineComment> lineToComment = new HashMap<>();
+                if (fileComments != null) {
+                    fileComments.forEach((line, comment) -> {
+                        LineComment copy = newComment(filePath, line, comment.getComment(), comment.getCreationTimestamp());
+                        copy.setAnchor(comment.getAnchorText(), comment.getContextHash());
+                        lineToComment.put(line, copy);
+                    });
+                }
+                replaceCommentsForFile(filePath, lineToComment);
+            });
+        });
+    }
+
+    /**
+     * Replaces every comment of the file in one step, e.g. after editor anchors moved them. Comments
+     * missing from the map are dropped.
+     */
+    public void replaceCommentsForFile(String filePath, Map<Integer, LineComment> lineToComment) {
+        if (deferUntilLoaded(() -> replaceCommentsForFile(filePath, lineToComment))) {
+            return;
+        }
+        ensureLoaded(filePath);
+        synchronized (stateLock) {
+            doReplaceComments(filePath, lineToComment);
+            record(CommentJournal.Record.replace(filePath, lineToComment));
+        }
+        changed(List.of(filePath));
     }
 
     public void updateLineNumbers(String filePath, int startLine, int lineDelta) {
-        Map<Integer, LineComment> originalFileComments = comments.get(filePath);
+        if (deferUntilLoaded(() -> updateLineNumbers(filePath, startLine, lineDelta))) {
+            return;
+        }
+        ensureLoaded(filePath);
+        synchronized (stateLock) {
+            if (!doUpdateLineNumbers(filePath, startLine, lineDelta)) {
+                return;
+            }
+            record(CommentJournal.Record.shift(filePath, startLine, lineDelta));
+        }
+        changed(List.of(filePath));
+    }
 
-        if (originalFileComments == null || originalFileComments.isEmpty()) {
+    /**
+     * Moves the comments of renamed files, and of every file below renamed directories, to their new
+     * paths in one batch. The comments are copied onto the new path rather than changed in place, as
+     * published snapshots share them; open documents' anchors carry their markers over to the copies.
+     * Renames re-key the path table, so they are applied at once even inside {@link #runBatch}.
+     * <p>
+     * Files already loaded are moved right away, which only re-keys memory, so editors asking for the new
+     * path at once find their comments. Files whose shard has not been read yet are loaded and moved on
+     * a pooled thread; nothing can have asked for their comments yet.
+     */
+    public void renamePaths(@NotNull Map<String, String> files, @NotNull Map<String, String> directories) {
+        if (deferUntilLoaded(() -> renamePaths(files, directories))) {
             return;
         }
+        changed(renameLoaded(files, directories));
+        boolean unloaded = !directories.isEmpty() && !allLoaded;
+        for (String oldPath : files.keySet()) {
+            int id = paths.findId(oldPath);
+            if ((id < 0 || !loadedPaths.contains(id)) && mayHaveComments(oldPath)) {
+                unloaded = true;
+            }
+        }
+        if (unloaded) {
+            AppExecutorUtil.getAppExecutorService().execute(() -> {
+                files.keySet().forEach(this::ensureLoaded);
+                if (!directories.isEmpty()) {
+                    ensureAllLoaded();
+                }
+                // Files moved above left a fresh, loaded id behind at their old path and are skipped.
+                changed(renameLoaded(files, directories));
+            });
+        }
+    }
 
-        Map<Integer, LineComment> newFileComments = new ConcurrentHashMap<>();
+    private Set<String> renameLoaded(Map<String, String> files, Map<String, String> directories) {
+        Set<String> changedPaths = new LinkedHashSet<>();
+        synchronized (stateLock) {
+            Map<String, String> renames = new LinkedHashMap<>(files);
+            if (!directories.isEmpty()) {
+                for (Integer id : comments.keySet()) {
+                    String filePath = paths.pathOf(id);
+                    directories.forEach((oldDirectory, newDirectory) -> {
+                        if (filePath.startsWith(oldDirectory + "/")) {
+                            renames.put(filePath, newDirectory + filePath.substring(oldDirectory.length()));
+                        }
+                    });
+                }
+            }
+            renames.forEach((oldPath, newPath) -> {
+                LineIndex moved = doRenamePath(oldPath, newPath);
+                if (moved != null) {
+                    journal.record(CommentJournal.Record.rename(oldPath, newPath, moved.toMap()));
+                    changedPaths.add(oldPath);
+                    changedPaths.add(newPath);
+                }
+            });
+        }
+        return changedPaths;
+    }
 
-        // Iterate over a copy of values to avoid concurrent modification issues on the map itself
-        for (LineComment comment : new ArrayList<>(originalFileComments.values())) {
-            int currentLine = comment.getLineNumber();
-            int newLine = currentLine; // Assume no change by default
+    /**
+     * Adds or replaces several comments of one file with a single journal record and one rebuild of the
+     * file's index.
+     */
+    public void addComments(String filePath, Map<Integer, String> lineToComment) {
+        if (lineToComment.isEmpty() || deferUntilLoaded(() -> addComments(filePath, lineToComment))) {
+            return;
+        }
+        ensureLoaded(filePath);
+        synchronized (stateLock) {
+            LineIndex fileComments = indexOf(filePath);
+            Map<Integer, LineComment> merged = fileComments != null ? fileComments.toMap() : new HashMap<>();
+            lineToComment.forEach((line, comment) -> merged.put(line, newComment(filePath, line, comment, System.currentTimeMillis())));
+            doReplaceComments(filePath, merged);
+            record(CommentJournal.Record.replace(filePath, merged));
+        }
+        changed(List.of(filePath));
+    }
+
+    /**
+     * Removes every comment of the file and returns the removed comments.
+     */
+    public List<LineComment> removeCommentsInFile(String filePath) {
+        return removeCommentsInRange(filePath, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes the comments on lines {@code startLine} to {@code endLine}, both inclusive, and returns the
+     * removed comments. Before loading has finished the removal is queued and nothing is returned.
+     */
+    public List<LineComment> removeCommentsInRange(String filePath, int startLine, int endLine) {
+        if (deferUntilLoaded(() -> removeCommentsInRange(filePath, startLine, endLine))) {
+            return List.of();
+        }
+        ensureLoaded(filePath);
+        List<LineComment> removed = new ArrayList<>();
+        synchronized (stateLock) {
+            LineIndex fileComments = indexOf(filePath);
+            if (fileComments == null) {
+                return removed;
+            }
+            Map<Integer, LineComment> kept = fileComments.toMap();
+            kept.entrySet().removeIf(entry -> {
+                boolean inRange = entry.getKey() >= startLine && entry.getKey() <= endLine;
+                if (inRange) {
+                    removed.add(entry.getValue());
+                }
+                return inRange;
+            });
+            if (removed.isEmpty()) {
+                return removed;
+            }
+            doReplaceComments(filePath, kept);
+            record(CommentJournal.Record.replace(filePath, kept));
+        }
+        changed(List.of(filePath));
+        return removed;
+    }
+
+    /**
+     * Runs the body as one change: its mutations are collected off to the side, then published to
+     * readers, journaled and announced to listeners together, once the body has returned. If the body
+     * throws, none of its changes take effect. The body runs without holding the service's lock; if
+     * another thread changes one of the files it read in the meantime, it runs again on the new state,
+     * so it should only change comments through this service. Nested batches join the outermost one.
+     */
+    public void runBatch(@NotNull Runnable body) {
+        if (deferUntilLoaded(() -> runBatch(body))) {
+            return;
+        }
+        if (batch.get() != null) {
+            body.run();
+            return;
+        }
+        while (true) {
+            Batch running = new Batch();
+            batch.set(running);
+            try {
+                body.run();
+            } finally {
+                batch.remove();
+            }
+            boolean committed;
+            synchronized (stateLock) {
+                committed = running.commit();
+            }
+            if (committed) {
+                changed(running.changedPaths);
+                return;
+            }
+            LOG.debug("Line comment batch raced with another change, running it again");
+        }
+    }
 
-            if (lineDelta > 0) { // Insertion
-                if (currentLine > startLine) {
-                    newLine = currentLine + lineDelta;
+    /**
+     * Mutations of one {@link #runBatch} call: the new snapshot of every file it changed and what goes
+     * with them, published under stateLock only if no file it read has changed since.
+     */
+    private final class Batch {
+        // Snapshot each file read by the batch had when first read, null for none
+        private final Map<Integer, LineIndex> bases = new HashMap<>();
+        // New snapshot of each file changed by the batch, null for no comments
+        private final Map<Integer, LineIndex> snapshots = new HashMap<>();
+        private final List<CommentJournal.Record> records = new ArrayList<>();
+        private final Set<String> removedFrom = new HashSet<>();
+        private final List<Runnable> afterCommit = new ArrayList<>();
+        private final Set<String> changedPaths = new LinkedHashSet<>();
+
+        @Nullable
+        LineIndex get(int id) {
+            if (snapshots.containsKey(id)) {
+                return snapshots.get(id);
+            }
+            LineIndex live = comments.get(id);
+            if (!bases.containsKey(id)) {
+                bases.put(id, live);
+            }
+            return live;
+        }
+
+        void put(int id, @Nullable LineIndex fileComments) {
+            get(id);
+            snapshots.put(id, fileComments);
+        }
+
+        // Called with stateLock held
+        boolean commit() {
+            for (Map.Entry<Integer, LineIndex> base : bases.entrySet()) {
+                if (comments.get(base.getKey()) != base.getValue()) {
+                    return false;
+                }
+            }
+            snapshots.forEach((id, fileComments) -> {
+                if (fileComments != null) {
+                    comments.put(id, fileComments);
+                } else {
+                    comments.remove(id);
                 }
-            } else { // Deletion
-                int numDeleted = -lineDelta;
-                int firstDeletedLine = startLine + 1;
-                int lastDeletedLine = startLine + numDeleted;
+            });
+            records.forEach(journal::record);
+            LineCommentService.this.removedFrom.addAll(removedFrom);
+            afterCommit.forEach(Runnable::run);
+            return true;
+        }
+    }
+
+    private void changed(Collection<String> filePaths) {
+        if (filePaths.isEmpty()) {
+            return;
+        }
+        Batch running = batch.get();
+        if (running != null) {
+            running.changedPaths.addAll(filePaths);
+            return;
+        }
+        writeBehind.changed();
+        project.getMessageBus().syncPublisher(LineCommentListener.TOPIC).commentsChanged(filePaths);
+    }
 
-                if (currentLine >= firstDeletedLine && currentLine <= lastDeletedLine) {
-                    // This comment is within the deleted block of lines, so we effectively remove it
-                    // by not adding it to the new map.
-                    continue;
-                } else if (currentLine > lastDeletedLine) {
-                    // This comment was after the deleted block, so it gets shifted up.
-                    newLine = currentLine + lineDelta;
+    // The file's snapshot as the batch running on this thread sees it, or the live one
+    @Nullable
+    private LineIndex current(int id) {
+        Batch running = batch.get();
+        return running != null ? running.get(id) : comments.get(id);
+    }
+
+    private void forEachFile(BiConsumer<Integer, LineIndex> consumer) {
+        Batch running = batch.get();
+        Set<Integer> ids = new HashSet<>(comments.keySet());
+        if (running != null) {
+            ids.addAll(running.snapshots.keySet());
+        }
+        for (int id : ids) {
+            LineIndex fileComments = current(id);
+            if (fileComments != null) {
+                consumer.accept(id, fileComments);
+            }
+        }
+    }
+
+    private void record(CommentJournal.Record record) {
+        Batch running = batch.get();
+        if (running != null) {
+            running.records.add(record);
+        } else {
+            journal.record(record);
+        }
+    }
+
+    private void markRemoved(String filePath) {
+        Batch running = batch.get();
+        if (running != null) {
+            running.removedFrom.add(filePath);
+        } else {
+            removedFrom.add(filePath);
+        }
+    }
+
+    private void afterCommit(Runnable action) {
+        Batch running = batch.get();
+        if (running != null) {
+            running.afterCommit.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    @Nullable
+    private LineIndex indexOf(String filePath) {
+        int id = paths.findId(filePath);
+        return id >= 0 ? current(id) : null;
+    }
+
+    private void apply(CommentJournal.Record record, String filePath) {
+        switch (record.op) {
+            case CommentJournal.Record.ADD -> putComment(toComment(record.path, record));
+            case CommentJournal.Record.UPDATE -> doUpdateComment(record.path, record.line, record.comment);
+            case CommentJournal.Record.REMOVE -> doRemoveComment(record.path, record.line);
+            case CommentJournal.Record.SHIFT -> doUpdateLineNumbers(record.path, record.line, record.delta);
+            case CommentJournal.Record.REPLACE -> doReplaceComments(record.path, toComments(record.path, record.entries));
+            case CommentJournal.Record.RENAME -> {
+                // Replayed once for each side, as each file's shard may be at a different generation.
+                if (filePath.equals(record.path)) {
+                    doReplaceComments(record.path, Map.of());
+                } else {
+                    doReplaceComments(record.target, toComments(record.target, record.entries));
                 }
             }
+            default -> LOG.warn("Skipping unknown line comment journal record: " + record.op);
+        }
+    }
 
-            comment.setLineNumber(newLine);
-            newFileComments.put(newLine, comment);
+    private Map<Integer, LineComment> toComments(String filePath, @Nullable List<CommentJournal.Record> entries) {
+        Map<Integer, LineComment> lineToComment = new HashMap<>();
+        if (entries != null) {
+            for (CommentJournal.Record entry : entries) {
+                lineToComment.put(entry.line, toComment(filePath, entry));
+            }
         }
+        return lineToComment;
+    }
 
-        comments.put(filePath, newFileComments);
-        saveComments();
+    private LineComment toComment(String filePath, CommentJournal.Record record) {
+        LineComment comment = newComment(filePath, record.line, record.comment, record.timestamp);
+        comment.setAnchor(pool(record.anchor), record.context);
+        return comment;
+    }
+
+    /**
+     * Creates a comment holding the interned path and the pooled text, so a million comments do not
+     * carry a million copies of a few hundred paths.
+     */
+    private LineComment newComment(String filePath, int lineNumber, String text, long timestamp) {
+        return new LineComment(paths.pathOf(paths.idOf(filePath)), lineNumber, pool(text), timestamp);
+    }
+
+    @Nullable
+    private String pool(@Nullable String text) {
+        return text != null && text.length() <= POOLED_TEXT_MAX_LENGTH ? texts.intern(text) : text;
+    }
+
+    // The do* methods run with stateLock held, or inside a batch, and publish a new snapshot of the file
+    // to the batch running on this thread if there is one.
+
+    private void putComment(LineComment lineComment) {
+        int id = paths.idOf(lineComment.getFilePath());
+        LineIndex fileComments = current(id);
+        publish(id, (fileComments != null ? fileComments : LineIndex.EMPTY).with(lineComment.getLineNumber(), lineComment));
+    }
+
+    private boolean doRemoveComment(String filePath, int lineNumber) {
+        LineIndex fileComments = indexOf(filePath);
+        if (fileComments == null) {
+            return false;
+        }
+        publish(filePath, fileComments.without(lineNumber));
+        markRemoved(filePath);
+        return true;
+    }
+
+    private boolean doUpdateComment(String filePath, int lineNumber, String newComment) {
+        LineIndex fileComments = indexOf(filePath);
+        LineComment comment = fileComments != null ? fileComments.get(lineNumber) : null;
+        if (comment == null) {
+            return false;
+        }
+        // A new comment object rather than an in-place edit, so published snapshots stay unchanged.
+        LineComment updated = newComment(filePath, lineNumber, newComment, comment.getCreationTimestamp());
+        updated.setAnchor(comment.getAnchorText(), comment.getContextHash());
+        publish(filePath, fileComments.with(lineNumber, updated));
+        return true;
+    }
+
+    private void publish(String filePath, LineIndex fileComments) {
+        publish(paths.idOf(filePath), fileComments);
+    }
+
+    private void publish(int id, LineIndex fileComments) {
+        Batch running = batch.get();
+        if (running != null) {
+            running.put(id, fileComments.isEmpty() ? null : fileComments);
+        } else if (fileComments.isEmpty()) {
+            comments.remove(id);
+        } else {
+            comments.put(id, fileComments);
+        }
+    }
+
+    private void doReplaceComments(String filePath, Map<Integer, LineComment> lineToComment) {
+        LineIndex previous = indexOf(filePath);
+        publish(filePath, LineIndex.fromMap(lineToComment));
+        if (previous != null && previous.size() > lineToComment.size()) {
+            markRemoved(filePath);
+        }
+    }
+
+    private boolean doUpdateLineNumbers(String filePath, int startLine, int lineDelta) {
+        LineIndex fileComments = indexOf(filePath);
+        if (fileComments == null || fileComments.isEmpty()) {
+            return false;
+        }
+        // Comments on deleted lines are dropped; everything after the edit point moves at once.
+        LineIndex.Shift shift = fileComments.shifted(startLine, lineDelta);
+        publish(filePath, shift.index());
+        if (!shift.removed().isEmpty()) {
+            markRemoved(filePath);
+        }
+        return true;
+    }
+
+    /**
+     * Re-keys the comments of one file. The path id moves with them and the old path gets a fresh, empty
+     * id, so its stale shard is never read back before the next compaction deletes it.
+     */
+    @Nullable
+    private LineIndex doRenamePath(String oldPath, String newPath) {
+        int oldId = paths.findId(oldPath);
+        LineIndex moved = oldId >= 0 ? comments.get(oldId) : null;
+        if (moved == null || moved.isEmpty()) {
+            return null;
+        }
+        int replaced = paths.findId(newPath);
+        if (replaced >= 0) {
+            comments.remove(replaced);
+            savedSnapshots.remove(replaced);
+        }
+        journalBacklog.remove(newPath);
+        // The comments keep their id but the new path has no shard yet.
+        int id = paths.rename(oldPath, newPath);
+        savedSnapshots.remove(id);
+        String sharedPath = paths.pathOf(id);
+        Map<Integer, LineComment> renamed = new HashMap<>();
+        moved.forEach((line, comment) -> renamed.put(line, comment.withFilePath(sharedPath)));
+        LineIndex renamedComments = LineIndex.fromMap(renamed);
+        comments.put(id, renamedComments);
+        loadedPaths.add(paths.idOf(oldPath));
+        removedFrom.add(oldPath);
+        return renamedComments;
     }
 
     public void addPendingDeletedComment(VirtualFile file, LineCommentEditorListener.DeletionCandidate candidate) {
-        pendingDeletions.computeIfAbsent(file, k -> new ArrayList<>()).add(candidate);
+        pendingDeletions.add(file, candidate);
+    }
+
+    /**
+     * Takes back a pending deletion whose line came back, e.g. by undo.
+     */
+    public void withdrawPendingDeletedComment(VirtualFile file, LineComment comment) {
+        pendingDeletions.withdraw(file, comment);
     }
 
     public List<LineCommentEditorListener.DeletionCandidate> getAndClearPendingDeletedComments(VirtualFile file) {
-        return pendingDeletions.remove(file);
+        return pendingDeletions.drain(file);
     }
 } 
\ No newline at end of file
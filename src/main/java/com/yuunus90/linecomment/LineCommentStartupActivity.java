@@ -1,13 +1,36 @@
 package com.yuunus90.linecomment;
 
+import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.startup.StartupActivity;
+import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
 
 public class LineCommentStartupActivity implements StartupActivity {
     @Override
     public void runActivity(@NotNull Project project) {
         EditorFactory.getInstance().addEditorFactoryListener(new LineCommentEditorListener(project), project);
+
+        // Notes load in the background; paint the editors that were restored before they were available.
+        LineCommentService.getInstance(project).runWhenLoaded(() -> refreshOpenEditors(project));
+    }
+
+    /**
+     * Anchors and redraws the comments of every editor of the project. Call on the EDT.
+     */
+    private static void refreshOpenEditors(@NotNull Project project) {
+        CommentAnchorService.getInstance(project).syncAll();
+        for (Editor editor : EditorFactory.getInstance().getAllEditors()) {
+            if (editor.getProject() != project) {
+                continue;
+            }
+            CommentAnchorService.getInstance(project).acquire(editor);
+            VirtualFile file = FileDocumentManager.getInstance().getFile(editor.getDocument());
+            if (file != null) {
+                LineCommentGutterIconRenderer.redrawAllIconsForEditor(project, editor, CommentPathUtil.getRelativePath(project, file));
+            }
+        }
     }
-} 
\ No newline at end of file
+}
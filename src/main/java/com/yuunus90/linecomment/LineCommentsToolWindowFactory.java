@@ -0,0 +1,124 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.ColoredTreeCellRenderer;
+import com.intellij.ui.SimpleTextAttributes;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import com.intellij.ui.treeStructure.Tree;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Project-wide list of comments grouped by file. The file list is read once in the background; after
+ * that only files named by change events are re-read, coalesced into one EDT update.
+ */
+public class LineCommentsToolWindowFactory implements ToolWindowFactory, DumbAware {
+
+    @Override
+    public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+        LineCommentService service = LineCommentService.getInstance(project);
+        CommentTreeModel model = new CommentTreeModel(service);
+        Tree tree = new Tree(model);
+        tree.setRootVisible(false);
+        tree.setShowsRootHandles(true);
+        // Fixed row height and a large model let the tree lay out only the rows in view.
+        tree.setRowHeight(tree.getFontMetrics(tree.getFont()).getHeight() + 4);
+        tree.setLargeModel(true);
+        tree.getEmptyText().setText("Yorumlar yükleniyor...");
+        tree.setCellRenderer(new ColoredTreeCellRenderer() {
+            @Override
+            public void customizeCellRenderer(@NotNull JTree jTree, Object value, boolean selected, boolean expanded,
+                                              boolean leaf, int row, boolean hasFocus) {
+                if (value instanceof CommentTreeModel.FileNode fileNode) {
+                    String filePath = fileNode.filePath();
+                    setIcon(FileTypeManager.getInstance().getFileTypeByFileName(filePath.substring(filePath.lastIndexOf('/') + 1)).getIcon());
+                    append(filePath);
+                    append("  " + model.getCommentCount(filePath), SimpleTextAttributes.GRAYED_ATTRIBUTES);
+                } else if (value instanceof CommentTreeModel.CommentNode commentNode && commentNode.comment() != null) {
+                    LineComment comment = commentNode.comment();
+                    append((commentNode.line() + 1) + ": ", SimpleTextAttributes.GRAYED_ATTRIBUTES);
+                    append(comment.getComment() != null ? comment.getComment() : "");
+                }
+            }
+        });
+
+        Runnable navigate = () -> {
+            Object selected = tree.getLastSelectedPathComponent();
+            if (selected instanceof CommentTreeModel.CommentNode commentNode && commentNode.comment() != null) {
+                CommentNavigation.navigate(project, commentNode.filePath(), commentNode.line());
+            } else if (selected instanceof CommentTreeModel.FileNode fileNode) {
+                CommentNavigation.navigate(project, fileNode.filePath(), 0);
+            }
+        };
+        tree.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent event) {
+                if (event.getClickCount() == 2) {
+                    navigate.run();
+                }
+            }
+        });
+        tree.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent event) {
+                if (event.getKeyCode() == KeyEvent.VK_ENTER) {
+                    navigate.run();
+                }
+            }
+        });
+
+        Content content = ContentFactory.getInstance().createContent(new JBScrollPane(tree), null, false);
+        toolWindow.getContentManager().addContent(content);
+
+        // Subscribe before reading the file list, and hold back events until it is shown.
+        Set<String> pending = ConcurrentHashMap.newKeySet();
+        AtomicBoolean scheduled = new AtomicBoolean();
+        boolean[] ready = new boolean[1]; // EDT only
+        Runnable drain = () -> {
+            scheduled.set(false);
+            if (!ready[0]) {
+                return;
+            }
+            List<String> changed = new ArrayList<>(pending);
+            pending.removeAll(changed);
+            changed.forEach(model::fileChanged);
+        };
+        project.getMessageBus().connect(content).subscribe(LineCommentListener.TOPIC, new LineCommentListener() {
+            @Override
+            public void commentsChanged(@NotNull Collection<String> filePaths) {
+                pending.addAll(filePaths);
+                if (scheduled.compareAndSet(false, true)) {
+                    ApplicationManager.getApplication().invokeLater(drain, project.getDisposed());
+                }
+            }
+        });
+        service.whenLoaded().thenRunAsync(() -> {
+            List<String> files = service.getCommentedFiles();
+            ApplicationManager.getApplication().invokeLater(() -> {
+                model.setFiles(files);
+                tree.getEmptyText().setText("Henüz satır yorumu yok");
+                ready[0] = true;
+                drain.run();
+            }, project.getDisposed());
+        }, AppExecutorUtil.getAppExecutorService());
+    }
+}
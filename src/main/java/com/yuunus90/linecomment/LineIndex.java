@@ -0,0 +1,278 @@
+package com.yuunus90.linecomment;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable, versioned snapshot of the comments of one file ordered by line. Lines are stored as gaps to
+ * the previous comment in a Fenwick tree, so lookups are an O(log n) descent and shifting every comment
+ * after an edit point copies one int array and applies a single O(log n) point update. Every change
+ * returns a new snapshot with a new {@link #version()}, so readers never lock or see a half-applied
+ * change and persistence can serialize a snapshot while writers move on.
+ * <p>
+ * The snapshot is the only source of a comment's current line. Comment objects are shared between
+ * snapshots and never written to here, so {@link LineComment#getLineNumber()} only tells the line the
+ * comment was created or loaded at.
+ */
+final class LineIndex {
+
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(int line, @NotNull LineComment comment);
+    }
+
+    /**
+     * The snapshot after a shift and the comments it dropped with their deleted lines.
+     */
+    record Shift(@NotNull LineIndex index, @NotNull List<LineComment> removed) {
+    }
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    static final LineIndex EMPTY = new LineIndex(new int[1], new LineComment[0], 0);
+
+    private final long version = VERSIONS.incrementAndGet();
+    private final int size;
+    private final int[] tree; // 1-based Fenwick tree over line gaps
+    private final LineComment[] values;
+
+    private LineIndex(int[] tree, LineComment[] values, int size) {
+        this.tree = tree;
+        this.values = values;
+        this.size = size;
+    }
+
+    static LineIndex fromMap(@NotNull Map<Integer, LineComment> comments) {
+        int[] lines = new int[comments.size()];
+        LineComment[] values = new LineComment[comments.size()];
+        int i = 0;
+        for (Map.Entry<Integer, LineComment> entry : comments.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                lines[i] = entry.getKey();
+                values[i] = entry.getValue();
+                i++;
+            }
+        }
+        Integer[] order = new Integer[i];
+        for (int k = 0; k < i; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(lines[a], lines[b]));
+        int[] sortedLines = new int[i];
+        LineComment[] sortedValues = new LineComment[i];
+        for (int k = 0; k < i; k++) {
+            sortedLines[k] = lines[order[k]];
+            sortedValues[k] = values[order[k]];
+        }
+        return build(sortedLines, sortedValues, i);
+    }
+
+    /**
+     * Unique across all snapshots, increasing with every change.
+     */
+    long version() {
+        return version;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int line) {
+        int index = firstIndexAtLeast(line);
+        return index < size && lineAt(index) == line;
+    }
+
+    @Nullable
+    LineComment get(int line) {
+        int index = firstIndexAtLeast(line);
+        if (index < size && lineAt(index) == line) {
+            return values[index];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the current line of this very comment, or -1 if the snapshot does not hold it. Linear in the
+     * number of comments, for one-off lookups such as a click on an icon.
+     */
+    int lineOf(@NotNull LineComment comment) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == comment) {
+                return lineAt(i);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a snapshot with the comment on the given line, replacing any comment already there.
+     */
+    @NotNull
+    LineIndex with(int line, @NotNull LineComment comment) {
+        int index = firstIndexAtLeast(line);
+        if (index < size && lineAt(index) == line) {
+            LineComment[] newValues = values.clone();
+            newValues[index] = comment;
+            return new LineIndex(tree, newValues, size);
+        }
+        int[] lines = materializeLines();
+        int[] newLines = new int[size + 1];
+        LineComment[] newValues = new LineComment[size + 1];
+        System.arraycopy(lines, 0, newLines, 0, index);
+        System.arraycopy(values, 0, newValues, 0, index);
+        newLines[index] = line;
+        newValues[index] = comment;
+        System.arraycopy(lines, index, newLines, index + 1, size - index);
+        System.arraycopy(values, index, newValues, index + 1, size - index);
+        return build(newLines, newValues, size + 1);
+    }
+
+    /**
+     * Returns a snapshot without the comment on the given line, or this one if there is none.
+     */
+    @NotNull
+    LineIndex without(int line) {
+        int index = firstIndexAtLeast(line);
+        if (index >= size || lineAt(index) != line) {
+            return this;
+        }
+        return withoutRange(index, index + 1);
+    }
+
+    /**
+     * Applies a line count change at {@code startLine}: for an insertion every comment below the start
+     * line moves down, for a deletion the comments on the deleted lines are dropped and every comment
+     * after them moves up.
+     */
+    @NotNull
+    Shift shifted(int startLine, int lineDelta) {
+        if (size == 0 || lineDelta == 0) {
+            return new Shift(this, List.of());
+        }
+        int first = firstIndexAtLeast(startLine + 1);
+        LineIndex result = this;
+        List<LineComment> removed = List.of();
+        if (lineDelta < 0) {
+            int last = firstIndexAtLeast(startLine - lineDelta + 1);
+            if (last > first) {
+                removed = List.of(Arrays.copyOfRange(values, first, last));
+                result = withoutRange(first, last);
+            }
+        }
+        if (first < result.size) {
+            int[] newTree = result.tree.clone();
+            for (int i = first + 1; i <= result.size; i += i & -i) {
+                newTree[i] += lineDelta;
+            }
+            result = new LineIndex(newTree, result.values, result.size);
+        }
+        return new Shift(result, removed);
+    }
+
+    void forEach(@NotNull EntryConsumer consumer) {
+        int[] lines = materializeLines();
+        for (int i = 0; i < size; i++) {
+            consumer.accept(lines[i], values[i]);
+        }
+    }
+
+    /**
+     * Returns the comments at positions {@code from} (inclusive) to {@code to} (exclusive) in line order,
+     * keyed by their current line, in O(k log n).
+     */
+    List<Map.Entry<Integer, LineComment>> slice(int from, int to) {
+        int end = Math.min(to, size);
+        List<Map.Entry<Integer, LineComment>> slice = new ArrayList<>(Math.max(end - from, 0));
+        for (int i = Math.max(from, 0); i < end; i++) {
+            slice.add(Map.entry(lineAt(i), values[i]));
+        }
+        return slice;
+    }
+
+    /**
+     * Returns the comments keyed by their current line.
+     */
+    Map<Integer, LineComment> toMap() {
+        Map<Integer, LineComment> map = new HashMap<>(size * 2);
+        int[] lines = materializeLines();
+        for (int i = 0; i < size; i++) {
+            map.put(lines[i], values[i]);
+        }
+        return map;
+    }
+
+    // Smallest 0-based index whose line is >= the given line, or size if there is none.
+    private int firstIndexAtLeast(int line) {
+        int position = 0;
+        int remaining = line;
+        for (int step = Integer.highestOneBit(Math.max(size, 1)); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= size && tree[next] < remaining) {
+                position = next;
+                remaining -= tree[next];
+            }
+        }
+        return position;
+    }
+
+    private int lineAt(int index) {
+        int sum = 0;
+        for (int i = index + 1; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    private int[] materializeLines() {
+        int[] lines = new int[size];
+        System.arraycopy(tree, 1, lines, 0, size);
+        // Undo the Fenwick accumulation to get the gaps back, then prefix-sum them into lines.
+        for (int i = size; i >= 1; i--) {
+            int parent = i + (i & -i);
+            if (parent <= size) {
+                lines[parent - 1] -= lines[i - 1];
+            }
+        }
+        for (int i = 1; i < size; i++) {
+            lines[i] += lines[i - 1];
+        }
+        return lines;
+    }
+
+    private LineIndex withoutRange(int from, int to) {
+        int[] lines = materializeLines();
+        int removed = to - from;
+        int[] newLines = new int[size - removed];
+        LineComment[] newValues = new LineComment[size - removed];
+        System.arraycopy(lines, 0, newLines, 0, from);
+        System.arraycopy(values, 0, newValues, 0, from);
+        System.arraycopy(lines, to, newLines, from, size - to);
+        System.arraycopy(values, to, newValues, from, size - to);
+        return build(newLines, newValues, size - removed);
+    }
+
+    private static LineIndex build(int[] lines, LineComment[] values, int size) {
+        int[] tree = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            tree[i + 1] = i == 0 ? lines[0] : lines[i] - lines[i - 1];
+        }
+        for (int i = 1; i <= size; i++) {
+            int parent = i + (i & -i);
+            if (parent <= size) {
+                tree[parent] += tree[i];
+            }
+        }
+        return new LineIndex(tree, values, size);
+    }
+}
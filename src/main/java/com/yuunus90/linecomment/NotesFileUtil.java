@@ -0,0 +1,44 @@
+package com.yuunus90.linecomment;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+public final class NotesFileUtil {
+
+    private NotesFileUtil() {
+        // Private constructor for utility class
+    }
+
+    /**
+     * Writes the content next to the target as a temporary file and moves it over the target,
+     * so readers never observe a half-written notes file.
+     *
+     * @param target  The file to replace.
+     * @param content The complete new content.
+     */
+    public static void writeAtomically(@NotNull Path target, @NotNull String content) throws IOException {
+        writeAtomically(target, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void writeAtomically(@NotNull Path target, byte @NotNull [] content) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, content);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Picks up comment shards changed on disk by a pull, a branch switch or another IDE instance, so they
+ * are merged in rather than overwritten by the next compaction. Changed shard files are collected across
+ * VFS events and read by one background task at a time; our own writes are recognized and skipped. Only
+ * files whose comments actually differ are merged, re-anchored in their open documents and redrawn.
+ */
+@Service(Service.Level.PROJECT)
+public final class NotesReloadService {
+
+    private final Project project;
+    private final String shardsPrefix;
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public NotesReloadService(Project project) {
+        this.project = project;
+        String basePath = project.getBasePath();
+        this.shardsPrefix = basePath != null ? basePath + "/.notes/shards/" : null;
+    }
+
+    public static NotesReloadService getInstance(@NotNull Project project) {
+        return project.getService(NotesReloadService.class);
+    }
+
+    /**
+     * Whether the file is a comment shard of this project, whose changes belong to {@link #reload}.
+     */
+    public boolean isShardFile(@NotNull String path) {
+        return shardsPrefix != null && path.startsWith(shardsPrefix) && (path.endsWith(".json") || path.endsWith(".bin"));
+    }
+
+    /**
+     * Queues the shard files for reading. Files queued while a task is running are picked up by the next.
+     */
+    public void reload(@NotNull Collection<Path> shardFiles) {
+        pending.addAll(shardFiles);
+        if (scheduled.compareAndSet(false, true)) {
+            ApplicationManager.getApplication().invokeLater(this::queueTask, project.getDisposed());
+        }
+    }
+
+    private void queueTask() {
+        new Task.Backgroundable(project, "Satır yorumları diskten yeniden yükleniyor", false) {
+            private Map<String, NotesShard> changed = new HashMap<>();
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                // Cleared before draining, so files queued from here on schedule another task.
+                scheduled.set(false);
+                List<Path> shardFiles = new ArrayList<>(pending);
+                pending.removeAll(shardFiles);
+                LineCommentService service = LineCommentService.getInstance(project);
+                service.whenLoaded().join();
+                changed = service.readExternalShards(shardFiles);
+            }
+
+            @Override
+            public void onSuccess() {
+                apply(changed);
+            }
+        }.queue();
+    }
+
+    // On the EDT
+    private void apply(Map<String, NotesShard> changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        CommentAnchorService anchors = CommentAnchorService.getInstance(project);
+        List<Document> documents = new ArrayList<>();
+        for (String filePath : changed.keySet()) {
+            Document document = cachedDocument(filePath);
+            if (document != null) {
+                documents.add(document);
+            }
+        }
+        // Write the lines edits have moved comments to into the service first, so they are merged
+        // from where they are now.
+        documents.forEach(anchors::sync);
+        // Merged files are re-anchored and redrawn by LineCommentGutterUpdater.
+        LineCommentService.getInstance(project).mergeExternalShards(changed);
+    }
+
+    @Nullable
+    private Document cachedDocument(String filePath) {
+        String basePath = project.getBasePath();
+        if (basePath == null) {
+            return null;
+        }
+        VirtualFile file = LocalFileSystem.getInstance().findFileByNioFile(Paths.get(basePath).resolve(filePath));
+        return file != null ? FileDocumentManager.getInstance().getCachedDocument(file) : null;
+    }
+}
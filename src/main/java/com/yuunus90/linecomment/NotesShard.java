@@ -0,0 +1,19 @@
+package com.yuunus90.linecomment;
+
+import java.util.Map;
+
+/**
+ * The comments of one file as stored in {@code .notes/shards}, with the journal generation they include.
+ * Free of platform classes, so the headless notes tool reads shards with the same model.
+ */
+final class NotesShard {
+    long generation;
+    String path;
+    Map<Integer, LineComment> comments;
+
+    NotesShard(long generation, String path, Map<Integer, LineComment> comments) {
+        this.generation = generation;
+        this.path = path;
+        this.comments = comments;
+    }
+}
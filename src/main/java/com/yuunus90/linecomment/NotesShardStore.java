@@ -0,0 +1,291 @@
+package com.yuunus90.linecomment;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.io.NioFiles;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the comments of every source file in its own shard under {@code .notes/shards}, bucketed by
+ * the first byte of the SHA-1 of the project-relative path. Each shard records the journal generation
+ * it was written at, so journal records that are already folded into it are not replayed twice.
+ * <p>
+ * Shards are written as pretty-printed JSON or, with {@value #FORMAT_KEY} set to {@code binary}, in the
+ * compact {@link BinaryShardCodec} format. Shards of the other format are still read, and replaced the
+ * next time their file is written.
+ */
+final class NotesShardStore {
+
+    private static final Logger LOG = Logger.getInstance(NotesShardStore.class);
+
+    static final String FORMAT_KEY = "linecomment.storage.format";
+    private static final String JSON_EXTENSION = ".json";
+    private static final String BINARY_EXTENSION = ".bin";
+
+    private static final long DELETED = -1;
+
+    private final Path shardsDirectory;
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private final boolean binary;
+    // CRC32 of each shard file as this store last wrote or took it in, or DELETED, to tell our own writes from others'
+    private final Map<Path, Long> knownContent = new ConcurrentHashMap<>();
+    // Project-relative path behind each shard file read or written, to resolve external deletions
+    private final Map<Path, String> shardFilePaths = new ConcurrentHashMap<>();
+
+    /**
+     * A shard file changed by someone else: its file's comments now, or {@code null} if it was deleted.
+     */
+    record ExternalChange(@NotNull String filePath, @Nullable NotesShard shard) {
+    }
+
+    NotesShardStore(@NotNull Path notesDirectory) {
+        this(notesDirectory, "binary".equals(Registry.stringValue(FORMAT_KEY)));
+    }
+
+    NotesShardStore(@NotNull Path notesDirectory, boolean binary) {
+        this.shardsDirectory = notesDirectory.resolve("shards");
+        this.binary = binary;
+    }
+
+    boolean exists() {
+        return Files.isDirectory(shardsDirectory);
+    }
+
+    /**
+     * Whether a shard of either format exists for the file, without reading it.
+     */
+    boolean contains(@NotNull String filePath) {
+        return Files.exists(shardPath(filePath, binary)) || Files.exists(shardPath(filePath, !binary));
+    }
+
+    @Nullable
+    NotesShard read(@NotNull String filePath) {
+        Path shardPath = shardPath(filePath, binary);
+        if (!Files.exists(shardPath)) {
+            shardPath = shardPath(filePath, !binary);
+            if (!Files.exists(shardPath)) {
+                return null;
+            }
+        }
+        NotesShard shard = readShard(shardPath);
+        if (shard != null && !filePath.equals(shard.path)) {
+            // Hash collision on the file name: treat it as no shard rather than mixing files.
+            LOG.warn("Line comment shard " + shardPath + " belongs to " + shard.path + ", not " + filePath);
+            return null;
+        }
+        return shard;
+    }
+
+    void forEach(@NotNull Consumer<NotesShard> consumer) {
+        if (!exists()) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(shardsDirectory, 2)) {
+            files.filter(this::isCurrentShard).forEach(p -> {
+                NotesShard shard = readShard(p);
+                if (shard != null) {
+                    consumer.accept(shard);
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not list line comment shards in " + shardsDirectory, e);
+        }
+    }
+
+    // A shard of the other format is skipped while one of the configured format exists next to it.
+    private boolean isCurrentShard(Path file) {
+        String name = file.getFileName().toString();
+        String extension = binary ? BINARY_EXTENSION : JSON_EXTENSION;
+        String otherExtension = binary ? JSON_EXTENSION : BINARY_EXTENSION;
+        if (name.endsWith(extension)) {
+            return true;
+        }
+        return name.endsWith(otherExtension) && !Files.exists(
+                file.resolveSibling(name.substring(0, name.length() - otherExtension.length()) + extension));
+    }
+
+    byte[] serialize(@NotNull NotesShard shard) {
+        return binary ? BinaryShardCodec.encode(shard) : gson.toJson(shard).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces the shard of the given file, or deletes it when the serialized shard is {@code null}.
+     */
+    void write(@NotNull String filePath, byte @Nullable [] serialized) throws IOException {
+        Path target = shardPath(filePath, binary);
+        Path other = shardPath(filePath, !binary);
+        // Recorded before writing, so the file watcher never sees the new content unannounced.
+        knownContent.put(target, serialized != null ? checksum(serialized) : DELETED);
+        knownContent.put(other, DELETED);
+        shardFilePaths.put(target, filePath);
+        if (serialized != null) {
+            NotesFileUtil.writeAtomically(target, serialized);
+        } else {
+            Files.deleteIfExists(target);
+        }
+        Files.deleteIfExists(other);
+    }
+
+    /**
+     * Reads a shard file reported changed on disk. Returns {@code null} if the change is our own write, if
+     * the file is shadowed by a shard of the configured format, or if it cannot be read or attributed.
+     */
+    @Nullable
+    ExternalChange readExternalChange(@NotNull Path file) {
+        if (!Files.exists(file)) {
+            Long known = knownContent.put(file, DELETED);
+            String filePath = shardFilePaths.get(file);
+            return known != null && known == DELETED || filePath == null ? null : new ExternalChange(filePath, null);
+        }
+        if (!isCurrentShard(file)) {
+            return null;
+        }
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (IOException e) {
+            LOG.warn("Could not read changed line comment shard " + file, e);
+            return null;
+        }
+        long crc = checksum(content);
+        Long known = knownContent.get(file);
+        if (known != null && known == crc) {
+            return null;
+        }
+        NotesShard shard = decode(file, content);
+        if (shard == null) {
+            return null;
+        }
+        knownContent.put(file, crc);
+        shardFilePaths.put(file, shard.path);
+        return new ExternalChange(shard.path, shard);
+    }
+
+    private static long checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    @Nullable
+    private NotesShard decode(Path file, byte[] content) {
+        try {
+            NotesShard shard = file.getFileName().toString().endsWith(BINARY_EXTENSION)
+                    ? BinaryShardCodec.decode(ByteBuffer.wrap(content))
+                    : gson.fromJson(new String(content, StandardCharsets.UTF_8), NotesShard.class);
+            return shard != null && shard.path != null ? shard : null;
+        } catch (IOException | JsonParseException e) {
+            LOG.warn("Could not read changed line comment shard " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * One-time split of the former single {@code notes.json} into shards. The shards are written to a
+     * staging directory that is renamed into place only when complete, so an interrupted migration is
+     * simply run again while the legacy file is still there. The legacy file is kept as
+     * {@code notes.json.migrated} afterwards.
+     */
+    void migrateLegacy(@NotNull Path legacyFile, long generation) throws IOException {
+        if (exists()) {
+            // Interrupted after the rename: the shards are complete and may already hold newer comments.
+            moveAside(legacyFile);
+            return;
+        }
+        Map<String, Map<Integer, LineComment>> legacy;
+        try (Reader reader = Files.newBufferedReader(legacyFile, StandardCharsets.UTF_8)) {
+            Type type = new TypeToken<Map<String, Map<Integer, LineComment>>>() {}.getType();
+            legacy = gson.fromJson(reader, type);
+        } catch (JsonParseException e) {
+            throw new IOException("Malformed legacy notes file " + legacyFile, e);
+        }
+        Path staging = shardsDirectory.resolveSibling(shardsDirectory.getFileName() + ".migrating");
+        NioFiles.deleteRecursively(staging);
+        Files.createDirectories(staging);
+        if (legacy != null) {
+            for (Map.Entry<String, Map<Integer, LineComment>> entry : legacy.entrySet()) {
+                if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+                    NotesFileUtil.writeAtomically(shardPath(staging, entry.getKey(), binary),
+                            serialize(new NotesShard(generation, entry.getKey(), entry.getValue())));
+                }
+            }
+        }
+        try {
+            Files.move(staging, shardsDirectory, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staging, shardsDirectory);
+        }
+        moveAside(legacyFile);
+    }
+
+    private static void moveAside(Path legacyFile) throws IOException {
+        Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Nullable
+    private NotesShard readShard(Path shardPath) {
+        NotesShard shard;
+        if (shardPath.getFileName().toString().endsWith(BINARY_EXTENSION)) {
+            try {
+                shard = BinaryShardCodec.read(shardPath);
+            } catch (IOException e) {
+                LOG.warn("Could not read line comment shard " + shardPath, e);
+                return null;
+            }
+        } else {
+            try (Reader reader = Files.newBufferedReader(shardPath, StandardCharsets.UTF_8)) {
+                shard = gson.fromJson(reader, NotesShard.class);
+            } catch (IOException | JsonParseException e) {
+                LOG.warn("Could not read line comment shard " + shardPath, e);
+                return null;
+            }
+        }
+        if (shard == null || shard.path == null) {
+            return null;
+        }
+        shardFilePaths.put(shardPath, shard.path);
+        return shard;
+    }
+
+    private Path shardPath(String filePath, boolean binaryShard) {
+        return shardPath(shardsDirectory, filePath, binaryShard);
+    }
+
+    private static Path shardPath(Path directory, String filePath, boolean binaryShard) {
+        String hash = sha1Hex(filePath);
+        return directory.resolve(hash.substring(0, 2)).resolve(hash + (binaryShard ? BINARY_EXTENSION : JSON_EXTENSION));
+    }
+
+    private static String sha1Hex(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
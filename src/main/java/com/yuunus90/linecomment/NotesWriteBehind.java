@@ -0,0 +1,107 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces notes changes and runs the writer on a background thread once the changes have been quiet
+ * for the debounce window, or at the latest after the max latency window since the first unsaved change.
+ */
+final class NotesWriteBehind {
+
+    private static final Logger LOG = Logger.getInstance(NotesWriteBehind.class);
+
+    static final String DEBOUNCE_KEY = "linecomment.save.debounce.ms";
+    static final String MAX_LATENCY_KEY = "linecomment.save.max.latency.ms";
+
+    private final Runnable writer;
+    private final ScheduledExecutorService executor =
+            AppExecutorUtil.createBoundedScheduledExecutorService("Line Comment Notes Writer", 1);
+    private final Object writeLock = new Object();
+
+    // Guarded by this
+    private long firstChangeNanos = -1;
+    private long lastChangeNanos = -1;
+    private boolean scheduled;
+    private boolean closed;
+
+    NotesWriteBehind(@NotNull Runnable writer) {
+        this.writer = writer;
+    }
+
+    void changed() {
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (firstChangeNanos < 0) {
+                firstChangeNanos = now;
+            }
+            lastChangeNanos = now;
+            if (!closed) {
+                if (!scheduled) {
+                    scheduled = true;
+                    executor.schedule(this::tick, debounceNanos(), TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+        }
+        // After close there is no executor to hand off to, so write through.
+        flush();
+    }
+
+    /**
+     * Writes pending changes synchronously on the calling thread, if there are any.
+     */
+    void flush() {
+        synchronized (this) {
+            if (firstChangeNanos < 0) {
+                return;
+            }
+            firstChangeNanos = -1;
+            lastChangeNanos = -1;
+        }
+        synchronized (writeLock) {
+            try {
+                writer.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Line comment write-behind flush failed", e);
+            }
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    private void tick() {
+        synchronized (this) {
+            if (firstChangeNanos < 0) {
+                scheduled = false;
+                return;
+            }
+            long due = Math.min(lastChangeNanos + debounceNanos(), firstChangeNanos + maxLatencyNanos());
+            long now = System.nanoTime();
+            if (now < due && !closed) {
+                executor.schedule(this::tick, due - now, TimeUnit.NANOSECONDS);
+                return;
+            }
+            scheduled = false;
+        }
+        flush();
+    }
+
+    private static long debounceNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, Registry.intValue(DEBOUNCE_KEY, 500)));
+    }
+
+    private static long maxLatencyNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, Registry.intValue(MAX_LATENCY_KEY, 5000)));
+    }
+}
@@ -0,0 +1,63 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Comments whose line was deleted in an editor, waiting for the file to close so the user can choose to
+ * archive them. Thread-safe. A comment is held once however often its line is deleted and restored, an
+ * undo withdraws it, and at most {@value #MAX_PENDING} are kept across all files: past that the oldest is
+ * dropped unarchived, just as if the user had declined.
+ */
+final class PendingDeletions {
+
+    private static final Logger LOG = Logger.getInstance(PendingDeletions.class);
+
+    static final int MAX_PENDING = 1000;
+
+    private record Key(VirtualFile file, LineComment comment) {
+    }
+
+    // Insertion ordered, so the eldest entry is the first dropped
+    private final Map<Key, LineCommentEditorListener.DeletionCandidate> pending = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, LineCommentEditorListener.DeletionCandidate> eldest) {
+            if (size() <= MAX_PENDING) {
+                return false;
+            }
+            LOG.info("Too many deleted line comments pending, dropping the one from " + eldest.getKey().file().getPath());
+            return true;
+        }
+    };
+
+    synchronized void add(@NotNull VirtualFile file, @NotNull LineCommentEditorListener.DeletionCandidate candidate) {
+        // Replacing keeps the first position but takes the latest line content.
+        pending.put(new Key(file, candidate.comment()), candidate);
+    }
+
+    synchronized boolean withdraw(@NotNull VirtualFile file, @NotNull LineComment comment) {
+        return pending.remove(new Key(file, comment)) != null;
+    }
+
+    /**
+     * Removes and returns the file's pending comments in the order they were deleted.
+     */
+    synchronized List<LineCommentEditorListener.DeletionCandidate> drain(@NotNull VirtualFile file) {
+        List<LineCommentEditorListener.DeletionCandidate> drained = new ArrayList<>();
+        for (Iterator<Map.Entry<Key, LineCommentEditorListener.DeletionCandidate>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, LineCommentEditorListener.DeletionCandidate> entry = it.next();
+            if (entry.getKey().file().equals(file)) {
+                drained.add(entry.getValue());
+                it.remove();
+            }
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,124 @@
+package com.yuunus90.linecomment;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.popup.JBPopup;
+import com.intellij.openapi.ui.popup.JBPopupFactory;
+import com.intellij.ui.DocumentAdapter;
+import com.intellij.ui.components.JBList;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.components.JBTextField;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import java.awt.*;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+
+public class SearchLineCommentsAction extends AnAction {
+    private static final int MAX_RESULTS = 200;
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+
+        CommentSearchIndex index = CommentSearchIndex.getInstance(project);
+        if (index.isBuilt()) {
+            showPopup(project, index);
+            return;
+        }
+        new Task.Backgroundable(project, "Yorum dizini oluşturuluyor", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                index.ensureBuilt();
+            }
+
+            @Override
+            public void onSuccess() {
+                showPopup(project, index);
+            }
+        }.queue();
+    }
+
+    private static void showPopup(Project project, CommentSearchIndex index) {
+        JBTextField queryField = new JBTextField();
+        DefaultListModel<CommentSearchIndex.Hit> model = new DefaultListModel<>();
+        JBList<CommentSearchIndex.Hit> resultList = new JBList<>(model);
+        resultList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                CommentSearchIndex.Hit hit = (CommentSearchIndex.Hit) value;
+                String text = (hit.archived() ? "[arşiv] " : "") + hit.comment() + "  —  " + hit.filePath() + ":" + (hit.lineNumber() + 1);
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+
+        queryField.getDocument().addDocumentListener(new DocumentAdapter() {
+            @Override
+            protected void textChanged(@NotNull DocumentEvent event) {
+                List<CommentSearchIndex.Hit> hits = index.search(queryField.getText(), MAX_RESULTS);
+                model.clear();
+                model.addAll(hits);
+                if (!hits.isEmpty()) {
+                    resultList.setSelectedIndex(0);
+                }
+            }
+        });
+
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        panel.add(queryField, BorderLayout.NORTH);
+        JBScrollPane scrollPane = new JBScrollPane(resultList);
+        scrollPane.setPreferredSize(new Dimension(600, 300));
+        panel.add(scrollPane, BorderLayout.CENTER);
+
+        JBPopup popup = JBPopupFactory.getInstance()
+                .createComponentPopupBuilder(panel, queryField)
+                .setTitle("Search Line Comments")
+                .setRequestFocus(true)
+                .setResizable(true)
+                .setMovable(true)
+                .createPopup();
+
+        Runnable navigate = () -> {
+            CommentSearchIndex.Hit hit = resultList.getSelectedValue();
+            if (hit != null && CommentNavigation.navigate(project, hit.filePath(), hit.lineNumber())) {
+                popup.cancel();
+            }
+        };
+        queryField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent event) {
+                int selected = resultList.getSelectedIndex();
+                if (event.getKeyCode() == KeyEvent.VK_ENTER) {
+                    navigate.run();
+                } else if (event.getKeyCode() == KeyEvent.VK_DOWN && selected < model.size() - 1) {
+                    resultList.setSelectedIndex(selected + 1);
+                    resultList.ensureIndexIsVisible(selected + 1);
+                } else if (event.getKeyCode() == KeyEvent.VK_UP && selected > 0) {
+                    resultList.setSelectedIndex(selected - 1);
+                    resultList.ensureIndexIsVisible(selected - 1);
+                }
+            }
+        });
+        resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent event) {
+                if (event.getClickCount() == 2) {
+                    navigate.run();
+                }
+            }
+        });
+
+        popup.showCenteredInCurrentWindow(project);
+    }
+}
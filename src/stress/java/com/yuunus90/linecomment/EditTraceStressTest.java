@@ -0,0 +1,368 @@
+package com.yuunus90.linecomment;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.intellij.openapi.actionSystem.IdeActions;
+import com.intellij.openapi.command.undo.UndoManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.impl.text.TextEditorProvider;
+import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+
+import java.awt.datatransfer.StringSelection;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the edit traces in {@code src/stress/resources/traces} through a real editor, with the plugin's
+ * editor listener, anchors, save listener and gutter icons in place, on a file of {@value #LINES} lines
+ * of which every {@value #COMMENT_EVERY}th carries a comment. Each operation is timed from the edit
+ * until the events it queued on the EDT have run, which is what the user waits for.
+ * <p>
+ * Every commented line carries a token naming its comment, so after each save the comments and their
+ * icons are checked against the text: no comment or icon may sit on another line's token, and no token
+ * left in the text may lose its comment. The test fails on any misplacement.
+ * <p>
+ * Each trace is replayed once on a separate file to warm up before it is measured. Percentiles and
+ * placement counts of every trace are written as JSON to the report file given in
+ * {@code linecomment.stress.report}. Latency is only checked against a report recorded earlier on the
+ * same machine, given in {@code linecomment.stress.baseline}: the test fails when the 95th percentile
+ * of an operation grows past {@code linecomment.stress.tolerance} times the baseline's.
+ * <p>
+ * Trace files hold one operation per line, {@code #} starts a comment:
+ * <pre>
+ * type LINE TEXT     types TEXT at the end of LINE, one keystroke per character (\n and \t escaped)
+ * paste LINE COUNT   pastes COUNT uncommented lines after LINE
+ * delete LINE COUNT  deletes COUNT whole lines from LINE on
+ * undo, redo, save
+ * repeat N OP        runs OP N times
+ * </pre>
+ */
+public class EditTraceStressTest extends BasePlatformTestCase {
+
+    private static final int LINES = 5000;
+    private static final int COMMENT_EVERY = 5;
+    private static final double[] PERCENTILES = {50, 90, 95, 99, 100};
+    private static final String CHECKED_PERCENTILE = "p95";
+    private static final double DEFAULT_TOLERANCE = 1.5;
+    // Below this growth in microseconds a slower percentile is noise, not a regression
+    private static final long SLACK_MICROS = 1_000;
+
+    // Results of every trace run so far, rewritten to the report after each trace
+    private static final Map<String, TraceResult> REPORT = new TreeMap<>();
+
+    private record TraceResult(Map<String, Map<String, Long>> latencyMicros, int misplaced, int orphaned) {
+    }
+
+    private record Op(String kind, int line, int count, String text) {
+    }
+
+    private final Map<String, List<Long>> latencies = new TreeMap<>();
+    private final List<String> filePaths = new ArrayList<>();
+    private Editor editor;
+    private Document document;
+    private FileEditor fileEditor;
+    private String filePath;
+    private int misplaced;
+    private int orphaned;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Registered by the startup activity in the IDE, which light tests do not run.
+        EditorFactory.getInstance().addEditorFactoryListener(new LineCommentEditorListener(getProject()), getTestRootDisposable());
+        LineCommentService.getInstance(getProject()).whenLoaded().get(30, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            filePaths.forEach(LineCommentService.getInstance(getProject())::removeCommentsInFile);
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    public void testTyping() throws IOException {
+        replay("typing");
+    }
+
+    public void testPasteAndDelete() throws IOException {
+        replay("paste-delete");
+    }
+
+    public void testUndoRedo() throws IOException {
+        replay("undo-redo");
+    }
+
+    private void replay(String trace) throws IOException {
+        List<Op> ops = readTrace(trace);
+        replay(trace + "-warmup", ops);
+        latencies.clear();
+        misplaced = 0;
+        orphaned = 0;
+        replay(trace, ops);
+        Map<String, Map<String, Long>> percentiles = report(trace);
+
+        assertEquals("Comments or icons on another comment's line in " + trace, 0, misplaced);
+        assertEquals("Comments lost although their line is still there in " + trace, 0, orphaned);
+        List<String> regressions = compareWithBaseline(trace, percentiles);
+        assertTrue("Slower than the baseline in " + trace + ": " + regressions, regressions.isEmpty());
+    }
+
+    private void replay(String name, List<Op> ops) {
+        open(name);
+        for (Op op : ops) {
+            run(op);
+        }
+        run(new Op("save", 0, 0, null));
+    }
+
+    private List<String> compareWithBaseline(String trace, Map<String, Map<String, Long>> percentiles) throws IOException {
+        String baselineFile = System.getProperty("linecomment.stress.baseline");
+        if (baselineFile == null) {
+            return List.of();
+        }
+        JsonObject baseline = JsonParser.parseString(Files.readString(Paths.get(baselineFile))).getAsJsonObject();
+        if (!baseline.has(trace)) {
+            return List.of();
+        }
+        JsonObject baselineLatency = baseline.getAsJsonObject(trace).getAsJsonObject("latencyMicros");
+        double tolerance = Double.parseDouble(System.getProperty("linecomment.stress.tolerance", String.valueOf(DEFAULT_TOLERANCE)));
+        List<String> regressions = new ArrayList<>();
+        percentiles.forEach((kind, values) -> {
+            if (!baselineLatency.has(kind)) {
+                return;
+            }
+            long before = baselineLatency.getAsJsonObject(kind).get(CHECKED_PERCENTILE).getAsLong();
+            long limit = Math.max((long) (before * tolerance), before + SLACK_MICROS);
+            long actual = values.get(CHECKED_PERCENTILE);
+            if (actual > limit) {
+                regressions.add(kind + " " + CHECKED_PERCENTILE + " " + actual + "us > " + limit + "us (baseline " + before + "us)");
+            }
+        });
+        return regressions;
+    }
+
+    private void open(String trace) {
+        StringBuilder text = new StringBuilder();
+        Map<Integer, String> lineToComment = new HashMap<>();
+        for (int line = 0; line < LINES; line++) {
+            text.append("    value").append(line).append(" = compute(").append(line).append(");");
+            if (line % COMMENT_EVERY == 0) {
+                String comment = "c" + line;
+                lineToComment.put(line, comment);
+                text.append(" // @").append(comment);
+            }
+            text.append('\n');
+        }
+        VirtualFile file = myFixture.addFileToProject("stress/" + trace + ".txt", text.toString()).getVirtualFile();
+        filePath = CommentPathUtil.getRelativePath(getProject(), file);
+        filePaths.add(filePath);
+        LineCommentService.getInstance(getProject()).addComments(filePath, lineToComment);
+        myFixture.openFileInEditor(file);
+        editor = myFixture.getEditor();
+        document = editor.getDocument();
+        fileEditor = TextEditorProvider.getInstance().getTextEditor(editor);
+        CommentAnchorService.getInstance(getProject()).redraw(editor, filePath);
+        PlatformTestUtil.dispatchAllInvocationEventsInIdeEventQueue();
+        verify();
+    }
+
+    private void run(Op op) {
+        switch (op.kind()) {
+            case "type" -> {
+                editor.getCaretModel().moveToOffset(document.getLineEndOffset(line(op.line())));
+                for (char c : op.text().toCharArray()) {
+                    long start = System.nanoTime();
+                    myFixture.type(c);
+                    PlatformTestUtil.dispatchAllInvocationEventsInIdeEventQueue();
+                    record("type", start);
+                }
+            }
+            case "paste" -> {
+                StringBuilder block = new StringBuilder();
+                for (int i = 0; i < op.count(); i++) {
+                    block.append("\n    pasted").append(i).append("();");
+                }
+                CopyPasteManager.getInstance().setContents(new StringSelection(block.toString()));
+                editor.getCaretModel().moveToOffset(document.getLineEndOffset(line(op.line())));
+                timed("paste", () -> myFixture.performEditorAction(IdeActions.ACTION_PASTE));
+            }
+            case "delete" -> {
+                int first = line(op.line());
+                int end = first + op.count() < document.getLineCount()
+                        ? document.getLineStartOffset(first + op.count()) : document.getTextLength();
+                editor.getSelectionModel().setSelection(document.getLineStartOffset(first), end);
+                timed("delete", () -> myFixture.performEditorAction(IdeActions.ACTION_EDITOR_DELETE));
+            }
+            case "undo" -> {
+                UndoManager undoManager = UndoManager.getInstance(getProject());
+                if (undoManager.isUndoAvailable(fileEditor)) {
+                    timed("undo", () -> undoManager.undo(fileEditor));
+                }
+            }
+            case "redo" -> {
+                UndoManager undoManager = UndoManager.getInstance(getProject());
+                if (undoManager.isRedoAvailable(fileEditor)) {
+                    timed("redo", () -> undoManager.redo(fileEditor));
+                }
+            }
+            case "save" -> {
+                timed("save", () -> FileDocumentManager.getInstance().saveDocument(document));
+                verify();
+            }
+            default -> fail("Unknown trace operation " + op.kind());
+        }
+    }
+
+    private int line(int line) {
+        return Math.max(0, Math.min(line, document.getLineCount() - 1));
+    }
+
+    private void timed(String kind, Runnable operation) {
+        long start = System.nanoTime();
+        operation.run();
+        PlatformTestUtil.dispatchAllInvocationEventsInIdeEventQueue();
+        record(kind, start);
+    }
+
+    private void record(String kind, long start) {
+        latencies.computeIfAbsent(kind, k -> new ArrayList<>()).add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * Counts comments and icons that are not on the line of their token, and tokens whose comment is
+     * gone. Comments and icons are looked up by line, so a comment left behind on the wrong line counts
+     * once for the line it is on and once for the token it lost.
+     */
+    private void verify() {
+        Map<Integer, LineComment> comments = LineCommentService.getInstance(getProject()).getCommentsForFile(filePath);
+        comments.forEach((line, comment) -> {
+            if (!hasToken(line, comment)) {
+                misplaced++;
+            }
+        });
+        int icons = 0;
+        for (RangeHighlighter highlighter : editor.getMarkupModel().getAllHighlighters()) {
+            if (highlighter.isValid() && highlighter.getGutterIconRenderer() instanceof LineCommentGutterIconRenderer renderer) {
+                icons++;
+                if (!hasToken(document.getLineNumber(highlighter.getStartOffset()), renderer.getLineComment())) {
+                    misplaced++;
+                }
+            }
+        }
+        if (icons != comments.size()) {
+            misplaced += Math.abs(icons - comments.size());
+        }
+        for (int line = 0; line < document.getLineCount(); line++) {
+            String token = token(line);
+            LineComment comment = comments.get(line);
+            if (token != null && (comment == null || !token.equals(comment.getComment()))) {
+                orphaned++;
+            }
+        }
+    }
+
+    private boolean hasToken(int line, LineComment comment) {
+        return line >= 0 && line < document.getLineCount() && comment.getComment().equals(token(line));
+    }
+
+    /**
+     * Returns the comment name after the {@code @} on the line, or {@code null} if the line has none.
+     */
+    private String token(int line) {
+        CharSequence text = document.getImmutableCharSequence();
+        int end = document.getLineEndOffset(line);
+        for (int i = document.getLineStartOffset(line); i < end; i++) {
+            if (text.charAt(i) == '@') {
+                int tokenEnd = i + 1;
+                while (tokenEnd < end && Character.isLetterOrDigit(text.charAt(tokenEnd))) {
+                    tokenEnd++;
+                }
+                return text.subSequence(i + 1, tokenEnd).toString();
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Map<String, Long>> report(String trace) throws IOException {
+        Map<String, Map<String, Long>> percentiles = new TreeMap<>();
+        latencies.forEach((kind, values) -> {
+            long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+            Map<String, Long> row = new LinkedHashMap<>();
+            row.put("count", (long) sorted.length);
+            for (double percentile : PERCENTILES) {
+                int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+                row.put(percentile == 100 ? "max" : "p" + (int) percentile, sorted[Math.max(index, 0)]);
+            }
+            percentiles.put(kind, row);
+        });
+
+        String reportFile = System.getProperty("linecomment.stress.report");
+        if (reportFile != null) {
+            REPORT.put(trace, new TraceResult(percentiles, misplaced, orphaned));
+            Path report = Paths.get(reportFile);
+            Files.createDirectories(report.getParent());
+            Files.writeString(report, new GsonBuilder().setPrettyPrinting().create().toJson(REPORT));
+        }
+        return percentiles;
+    }
+
+    private List<Op> readTrace(String trace) throws IOException {
+        InputStream in = EditTraceStressTest.class.getResourceAsStream("/traces/" + trace + ".trace");
+        assertNotNull("Missing trace " + trace, in);
+        List<Op> ops = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                int times = 1;
+                if (line.startsWith("repeat ")) {
+                    String[] repeat = line.split(" ", 3);
+                    times = Integer.parseInt(repeat[1]);
+                    line = repeat[2];
+                }
+                Op op = parse(line);
+                for (int i = 0; i < times; i++) {
+                    ops.add(op);
+                }
+            }
+        }
+        return ops;
+    }
+
+    private static Op parse(String line) {
+        String[] parts = line.split(" ", 3);
+        return switch (parts[0]) {
+            case "type" -> new Op("type", Integer.parseInt(parts[1]), 0, parts[2].replace("\\n", "\n").replace("\\t", "\t"));
+            case "paste", "delete" -> new Op(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), null);
+            case "undo", "redo", "save" -> new Op(parts[0], 0, 0, null);
+            default -> throw new IllegalArgumentException("Unknown trace operation: " + Arrays.toString(parts));
+        };
+    }
+}